@@ -0,0 +1,206 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotDevice;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.esri.geoevent.transport.aws.AwsIoTHubInboundTransport;
+import com.esri.geoevent.transport.aws.AwsIoTHubMqttClient;
+import com.esri.geoevent.transport.aws.AwsIoTHubOutboundTransport;
+import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
+import com.esri.ges.core.component.ComponentException;
+import com.esri.ges.core.component.RunningState;
+import com.esri.ges.transport.ByteListener;
+import com.esri.ges.transport.util.XmlTransportDefinition;
+
+/**
+ * BenchmarkTransports class builds the transports under test with their MQTT connections replaced
+ * by {@link StubMqttClient}, so the benchmarks measure the transport code and not a broker.
+ */
+final class BenchmarkTransports
+{
+  static final String TOPIC = "bench/records";
+
+  private BenchmarkTransports()
+  {
+  }
+
+  static AwsIoTHubInboundTransport inbound() throws ComponentException
+  {
+    return new AwsIoTHubInboundTransport(new XmlTransportDefinition(AwsIoTHubInboundTransport.class.getResourceAsStream("/aws-inbound-transport-definition.xml")))
+      {
+        @Override
+        protected KeyStorePasswordPair loadCredentials()
+        {
+          return emptyCredentials();
+        }
+
+        @Override
+        protected AwsIoTHubMqttClient createClient(String connectionClientId, KeyStorePasswordPair pair)
+        {
+          return new StubMqttClient(connectionClientId, pair);
+        }
+      };
+  }
+
+  static AwsIoTHubOutboundTransport outbound() throws ComponentException
+  {
+    return new AwsIoTHubOutboundTransport(new XmlTransportDefinition(AwsIoTHubOutboundTransport.class.getResourceAsStream("/aws-outbound-transport-definition.xml")))
+      {
+        @Override
+        protected KeyStorePasswordPair loadCredentials()
+        {
+          return emptyCredentials();
+        }
+
+        @Override
+        protected AwsIoTHubMqttClient createClient(String connectionClientId, KeyStorePasswordPair pair)
+        {
+          return new StubMqttClient(connectionClientId, pair);
+        }
+      };
+  }
+
+  /**
+   * Waits for a transport to report STARTED; transports connect on a supervisor thread, even to the
+   * stub client.
+   */
+  static void awaitStarted(Supplier<RunningState> runningState, Supplier<String> errorMessage) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (runningState.get() != RunningState.STARTED)
+    {
+      if (runningState.get() == RunningState.ERROR || System.currentTimeMillis() > deadline)
+        throw new IllegalStateException(errorMessage.get());
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * @return a JSON record of about <code>size</code> bytes, with an <code>id</code> field for topic
+   *         templates and partition keys
+   */
+  static byte[] record(int size, int id)
+  {
+    StringBuilder record = new StringBuilder(size + 64);
+    record.append("{\"id\":\"device-").append(id).append("\",\"speed\":42.5,\"heading\":180,\"pad\":\"");
+    while (record.length() < size - 2)
+      record.append('x');
+    record.append("\"}");
+    return record.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static KeyStorePasswordPair emptyCredentials()
+  {
+    try
+    {
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      keyStore.load(null, null);
+      return new KeyStorePasswordPair(keyStore, "");
+    }
+    catch (Exception e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * StubMqttClient class stands in for a connected client: publishes are acknowledged on the calling
+   * thread and subscriptions and devices are accepted without a broker.
+   */
+  static final class StubMqttClient extends AwsIoTHubMqttClient
+  {
+    StubMqttClient(String clientId, KeyStorePasswordPair pair)
+    {
+      super("localhost", clientId, pair.keyStore, pair.keyPassword);
+    }
+
+    @Override
+    public void connect() throws AWSIotException
+    {
+    }
+
+    @Override
+    public void disconnect() throws AWSIotException
+    {
+    }
+
+    @Override
+    public void disconnect(long timeout) throws AWSIotException
+    {
+    }
+
+    @Override
+    public void publish(AWSIotMessage message, long timeout) throws AWSIotException
+    {
+      message.onSuccess();
+    }
+
+    @Override
+    public void subscribe(AWSIotTopic topic, boolean blocking) throws AWSIotException
+    {
+    }
+
+    @Override
+    public void attach(AWSIotDevice device) throws AWSIotException
+    {
+    }
+
+    @Override
+    public void detach(AWSIotDevice device) throws AWSIotException
+    {
+    }
+
+    @Override
+    public AWSIotConnectionStatus getConnectionStatus()
+    {
+      return AWSIotConnectionStatus.CONNECTED;
+    }
+  }
+
+  /**
+   * CountingByteListener class stands in for the adapter: it consumes each buffer and keeps a
+   * running total that the benchmarks return, so the delivery cannot be optimized away.
+   */
+  static final class CountingByteListener implements ByteListener
+  {
+    long bytes;
+
+    @Override
+    public void receive(ByteBuffer buffer, String channelId)
+    {
+      bytes += buffer.remaining();
+      buffer.position(buffer.limit());
+    }
+  }
+}
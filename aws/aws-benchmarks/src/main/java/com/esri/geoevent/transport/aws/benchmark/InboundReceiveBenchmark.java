@@ -0,0 +1,104 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.esri.geoevent.transport.aws.AwsIoTHubInboundTransport;
+
+/**
+ * InboundReceiveBenchmark class drives {@link AwsIoTHubInboundTransport} from the MQTT callback
+ * to the adapter, either on the callback thread or through the dispatch queue. Throughput mode
+ * gives the sustainable message rate, sample mode the latency distribution at that rate; run with
+ * <code>-prof gc</code> for the allocation rate and <code>-t</code> to add callback threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundReceiveBenchmark
+{
+  @Param({ "256", "4096", "65536" })
+  public int                                            payloadSize;
+
+  @Param({ "callback", "dispatcher" })
+  public String                                         delivery;
+
+  @Param({ "false", "true" })
+  public boolean                                        batch;
+
+  private AwsIoTHubInboundTransport                     transport;
+  private AwsIoTHubInboundTransport.AwsIoTTopicListener listener;
+  private AWSIotMessage                                 message;
+  private BenchmarkTransports.CountingByteListener      adapter;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    transport = BenchmarkTransports.inbound();
+    transport.getProperty("topic").setValue(BenchmarkTransports.TOPIC);
+    transport.getProperty("dispatchQueueSize").setValue("callback".equals(delivery) ? 0 : 10000);
+    transport.getProperty("batchEnabled").setValue(batch);
+    adapter = new BenchmarkTransports.CountingByteListener();
+    transport.setByteListener(adapter);
+    // connect on this thread rather than through start()
+    transport.run();
+    BenchmarkTransports.awaitStarted(transport::getRunningState, transport::getErrorMessage);
+
+    listener = transport.new AwsIoTTopicListener(BenchmarkTransports.TOPIC, AWSIotQos.QOS0);
+    message = new AWSIotMessage(BenchmarkTransports.TOPIC, AWSIotQos.QOS0, BenchmarkTransports.record(payloadSize, 1));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    transport.stop();
+  }
+
+  @Benchmark
+  public long onMessage()
+  {
+    listener.onMessage(message);
+    return adapter.bytes;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubOutboundTransport;
+
+/**
+ * OutboundReceiveBenchmark class drives {@link AwsIoTHubOutboundTransport#receive} from the adapter
+ * buffer to an acknowledged publish, with records routed through a topic template and optionally
+ * aggregated and compressed. Run with <code>-prof gc</code> for the allocation rate and
+ * <code>-t</code> to add adapter threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboundReceiveBenchmark
+{
+  @Param({ "256", "4096", "65536" })
+  public int                         payloadSize;
+
+  @Param({ "false", "true" })
+  public boolean                     aggregation;
+
+  @Param({ "NONE", "GZIP" })
+  public String                      compression;
+
+  private AwsIoTHubOutboundTransport transport;
+  private byte[]                     record;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception
+  {
+    transport = BenchmarkTransports.outbound();
+    transport.getProperty("topic").setValue("bench/{id}");
+    transport.getProperty("aggregationEnabled").setValue(aggregation);
+    transport.getProperty("compression").setValue(compression);
+    transport.getProperty("maxInFlight").setValue(100000);
+    transport.start();
+    BenchmarkTransports.awaitStarted(transport::getRunningState, transport::getErrorMessage);
+    record = BenchmarkTransports.record(payloadSize, 1);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    transport.stop();
+  }
+
+  @Benchmark
+  public void receive(BufferState state)
+  {
+    state.buffer.rewind();
+    transport.receive(state.buffer, "bench");
+  }
+
+  /**
+   * BufferState class gives every benchmark thread its own buffer over the shared record.
+   */
+  @State(Scope.Thread)
+  public static class BufferState
+  {
+    ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp(OutboundReceiveBenchmark benchmark)
+    {
+      buffer = ByteBuffer.wrap(benchmark.record);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.it;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+
+/**
+ * EmbeddedBroker class runs an in-process MQTT broker that only accepts TLS connections presenting
+ * a client certificate issued by the test authority, the way AWS IoT authenticates devices.
+ */
+final class EmbeddedBroker
+{
+  private final Server server = new Server();
+
+  void start(TestCertificates certificates, int sslPort) throws IOException
+  {
+    Properties properties = new Properties();
+    properties.setProperty("host", "localhost");
+    // the plain listener cannot be turned off, so it is put on a free port nobody uses
+    properties.setProperty("port", String.valueOf(freePort()));
+    properties.setProperty("ssl_port", String.valueOf(sslPort));
+    properties.setProperty("jks_path", certificates.brokerKeyStore.getAbsolutePath());
+    properties.setProperty("key_store_type", "jks");
+    properties.setProperty("key_store_password", TestCertificates.PASSWORD);
+    properties.setProperty("key_manager_password", TestCertificates.PASSWORD);
+    properties.setProperty("need_client_auth", "true");
+    properties.setProperty("allow_anonymous", "true");
+    properties.setProperty("persistent_store", "");
+    server.startServer(new MemoryConfig(properties));
+  }
+
+  void stop()
+  {
+    server.stopServer();
+  }
+
+  private static int freePort() throws IOException
+  {
+    try (ServerSocket socket = new ServerSocket(0))
+    {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.it;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * TestCertificates class generates a throwaway certificate authority with a server certificate for
+ * the embedded broker and a client certificate for the transports. The client certificate and key
+ * are written as PEM files, the form the transports read through
+ * <code>AwsIoTHubUtil.getKeyStorePasswordPair</code>; the broker gets a key store holding its key
+ * and the authority it accepts client certificates from.
+ */
+final class TestCertificates
+{
+  static final String            PASSWORD = "changeit";
+
+  private static final String    CA_NAME  = "CN=GeoEvent Integration Test CA";
+  private static final AtomicLong SERIAL  = new AtomicLong(System.currentTimeMillis());
+
+  final File                     certificatePem;
+  final File                     privateKeyPem;
+  final File                     brokerKeyStore;
+  final File                     trustStore;
+
+  private TestCertificates(File directory)
+  {
+    certificatePem = new File(directory, "client-certificate.pem");
+    privateKeyPem = new File(directory, "client-private-key.pem");
+    brokerKeyStore = new File(directory, "broker.jks");
+    trustStore = new File(directory, "truststore.jks");
+  }
+
+  static TestCertificates generate(File directory) throws Exception
+  {
+    TestCertificates certificates = new TestCertificates(directory);
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+
+    KeyPair caKeys = generator.generateKeyPair();
+    X509Certificate ca = sign(CA_NAME, caKeys.getPublic(), caKeys.getPrivate(), true);
+    KeyPair serverKeys = generator.generateKeyPair();
+    X509Certificate server = sign("CN=localhost", serverKeys.getPublic(), caKeys.getPrivate(), false);
+    KeyPair clientKeys = generator.generateKeyPair();
+    X509Certificate client = sign("CN=geoevent-integration-test", clientKeys.getPublic(), caKeys.getPrivate(), false);
+
+    writePem(certificates.certificatePem, "CERTIFICATE", client.getEncoded());
+    writePem(certificates.privateKeyPem, "PRIVATE KEY", clientKeys.getPrivate().getEncoded());
+
+    KeyStore brokerKeys = emptyKeyStore();
+    brokerKeys.setKeyEntry("server", serverKeys.getPrivate(), PASSWORD.toCharArray(), new Certificate[] { server, ca });
+    brokerKeys.setCertificateEntry("ca", ca);
+    store(brokerKeys, certificates.brokerKeyStore);
+
+    KeyStore trusted = emptyKeyStore();
+    trusted.setCertificateEntry("ca", ca);
+    store(trusted, certificates.trustStore);
+    return certificates;
+  }
+
+  private static X509Certificate sign(String subject, PublicKey key, PrivateKey caKey, boolean ca) throws Exception
+  {
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(CA_NAME), BigInteger.valueOf(SERIAL.incrementAndGet()), new Date(now - 60000L), new Date(now + 24 * 3600000L), new X500Name(subject), key);
+    builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+    if (!ca)
+      builder.addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName(GeneralName.dNSName, "localhost")));
+    ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(caKey);
+    return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+  }
+
+  private static void writePem(File file, String type, byte[] der) throws IOException
+  {
+    String pem = "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(der) + "\n-----END " + type + "-----\n";
+    try (OutputStream out = new FileOutputStream(file))
+    {
+      out.write(pem.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private static KeyStore emptyKeyStore() throws Exception
+  {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    return keyStore;
+  }
+
+  private static void store(KeyStore keyStore, File file) throws Exception
+  {
+    try (OutputStream out = new FileOutputStream(file))
+    {
+      keyStore.store(out, PASSWORD.toCharArray());
+    }
+  }
+}
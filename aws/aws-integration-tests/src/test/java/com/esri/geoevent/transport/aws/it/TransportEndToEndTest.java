@@ -0,0 +1,240 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws.it;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubInboundTransport;
+import com.esri.geoevent.transport.aws.AwsIoTHubOutboundTransport;
+import com.esri.ges.core.component.RunningState;
+import com.esri.ges.transport.ByteListener;
+import com.esri.ges.transport.util.XmlTransportDefinition;
+
+/**
+ * TransportEndToEndTest class publishes records through an {@link AwsIoTHubOutboundTransport} to
+ * the embedded broker at a fixed rate and receives them with an {@link AwsIoTHubInboundTransport},
+ * both authenticating with generated client certificates. It fails when records are lost, or when
+ * the throughput or the 99th percentile latency regress past the limits given as system
+ * properties (see the pom).
+ * <p>
+ * The AWS IoT device SDK always connects on port 8883, so the broker listens there by default.
+ */
+public class TransportEndToEndTest extends TestCase
+{
+  private static final int    MESSAGES             = Integer.getInteger("it.messages", 20000);
+  private static final int    RATE                 = Integer.getInteger("it.rate", 2000);
+  private static final int    MIN_THROUGHPUT       = Integer.getInteger("it.minThroughput", 1000);
+  private static final int    MAX_P99_MILLIS       = Integer.getInteger("it.maxP99Millis", 250);
+  private static final int    BROKER_PORT          = Integer.getInteger("it.brokerPort", 8883);
+  private static final String TRUST_STORE          = "javax.net.ssl.trustStore";
+  private static final String TRUST_STORE_PASSWORD = "javax.net.ssl.trustStorePassword";
+
+  private File                       directory;
+  private TestCertificates           certificates;
+  private EmbeddedBroker             broker;
+  private AwsIoTHubInboundTransport  inbound;
+  private AwsIoTHubOutboundTransport outbound;
+  private String                     previousTrustStore;
+  private String                     previousTrustStorePassword;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    directory = Files.createTempDirectory("aws-transport-it").toFile();
+    certificates = TestCertificates.generate(directory);
+    // the SDK trusts the broker through the default trust store; tearDown puts the old one back
+    previousTrustStore = System.getProperty(TRUST_STORE);
+    previousTrustStorePassword = System.getProperty(TRUST_STORE_PASSWORD);
+    System.setProperty(TRUST_STORE, certificates.trustStore.getAbsolutePath());
+    System.setProperty(TRUST_STORE_PASSWORD, TestCertificates.PASSWORD);
+    broker = new EmbeddedBroker();
+    broker.start(certificates, BROKER_PORT);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    if (outbound != null)
+      outbound.stop();
+    if (inbound != null)
+      inbound.stop();
+    if (broker != null)
+      broker.stop();
+    if (directory != null)
+    {
+      for (File file : directory.listFiles())
+        file.delete();
+      directory.delete();
+    }
+    restoreProperty(TRUST_STORE, previousTrustStore);
+    restoreProperty(TRUST_STORE_PASSWORD, previousTrustStorePassword);
+  }
+
+  public void testTopicRoundTrip() throws Exception
+  {
+    LatencyRecorder recorder = new LatencyRecorder(MESSAGES);
+
+    inbound = new AwsIoTHubInboundTransport(new XmlTransportDefinition(AwsIoTHubInboundTransport.class.getResourceAsStream("/aws-inbound-transport-definition.xml")));
+    configure((name, value) -> inbound.getProperty(name).setValue(value), "it-inbound", "it/#");
+    inbound.setByteListener(recorder);
+    inbound.run();
+    awaitStarted(inbound::getRunningState, inbound::getErrorMessage);
+
+    outbound = new AwsIoTHubOutboundTransport(new XmlTransportDefinition(AwsIoTHubOutboundTransport.class.getResourceAsStream("/aws-outbound-transport-definition.xml")));
+    configure((name, value) -> outbound.getProperty(name).setValue(value), "it-outbound", "it/{id}");
+    outbound.start();
+    awaitStarted(outbound::getRunningState, outbound::getErrorMessage);
+
+    // paced against a schedule, so a slow send is caught up rather than lowering the rate
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+    long start = System.nanoTime();
+    for (int i = 0; i < MESSAGES; i++)
+    {
+      long due = start + i * intervalNanos;
+      long now;
+      while ((now = System.nanoTime()) < due)
+        LockSupport.parkNanos(due - now);
+      byte[] record = ("{\"id\":\"device-" + (i % 16) + "\",\"seq\":" + i + ",\"sentNanos\":" + System.nanoTime() + "}").getBytes(StandardCharsets.UTF_8);
+      outbound.receive(ByteBuffer.wrap(record), "it");
+    }
+
+    long timeoutSeconds = MESSAGES / Math.max(1, RATE) * 2 + 30;
+    recorder.await(timeoutSeconds);
+    long elapsedNanos = recorder.lastReceived - start;
+    double throughput = recorder.count() * 1e9 / Math.max(1, elapsedNanos);
+    long p99Millis = TimeUnit.NANOSECONDS.toMillis(recorder.percentile(0.99));
+    String summary = String.format("%d of %d records in %.1f s: %.0f records/s, latency p50 %d ms, p99 %d ms, max %d ms", recorder.count(), MESSAGES, elapsedNanos / 1e9, throughput,
+        TimeUnit.NANOSECONDS.toMillis(recorder.percentile(0.5)), p99Millis, TimeUnit.NANOSECONDS.toMillis(recorder.percentile(1.0)));
+
+    assertEquals("records lost; " + summary, MESSAGES, recorder.count());
+    assertTrue("throughput below " + MIN_THROUGHPUT + " records/s; " + summary, throughput >= MIN_THROUGHPUT);
+    assertTrue("p99 latency above " + MAX_P99_MILLIS + " ms; " + summary, p99Millis <= MAX_P99_MILLIS);
+  }
+
+  /**
+   * Transports connect on a supervisor thread, so the test waits for them rather than asserting
+   * straight after starting them.
+   */
+  private static void awaitStarted(Supplier<RunningState> runningState, Supplier<String> errorMessage) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (runningState.get() != RunningState.STARTED && System.currentTimeMillis() < deadline)
+      Thread.sleep(20);
+    assertEquals(errorMessage.get(), RunningState.STARTED, runningState.get());
+  }
+
+  private static void restoreProperty(String name, String value)
+  {
+    if (value != null)
+      System.setProperty(name, value);
+    else
+      System.clearProperty(name);
+  }
+
+  private void configure(BiConsumer<String, Object> property, String deviceId, String topic)
+  {
+    property.accept("deviceid", deviceId);
+    property.accept("endpoint", "localhost");
+    property.accept("X509certificate", certificates.certificatePem.getAbsolutePath());
+    property.accept("privateKey", certificates.privateKeyPem.getAbsolutePath());
+    property.accept("iotservicetype", "IOT_TOPIC");
+    property.accept("topic", topic);
+  }
+
+  /**
+   * LatencyRecorder class stands in for the adapter and reads back the send time the test wrote
+   * into each record.
+   */
+  private static final class LatencyRecorder implements ByteListener
+  {
+    private static final String  SENT_FIELD = "\"sentNanos\":";
+
+    private final long[]         latencies;
+    private final AtomicInteger  received   = new AtomicInteger();
+    private final CountDownLatch done;
+    private volatile long        lastReceived;
+
+    LatencyRecorder(int expected)
+    {
+      latencies = new long[expected];
+      done = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void receive(ByteBuffer buffer, String channelId)
+    {
+      long now = System.nanoTime();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      int index = received.getAndIncrement();
+      if (index < latencies.length)
+        latencies[index] = now - sentNanos(bytes);
+      lastReceived = now;
+      done.countDown();
+    }
+
+    void await(long timeoutSeconds) throws InterruptedException
+    {
+      done.await(timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    int count()
+    {
+      return Math.min(received.get(), latencies.length);
+    }
+
+    long percentile(double quantile)
+    {
+      int count = count();
+      if (count == 0)
+        return 0;
+      long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted[Math.max(0, (int) Math.ceil(count * quantile) - 1)];
+    }
+
+    private static long sentNanos(byte[] bytes)
+    {
+      String record = new String(bytes, StandardCharsets.UTF_8);
+      int start = record.indexOf(SENT_FIELD) + SENT_FIELD.length();
+      int end = start;
+      while (end < record.length() && (Character.isDigit(record.charAt(end)) || record.charAt(end) == '-'))
+        end++;
+      return Long.parseLong(record.substring(start, end));
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * AwsIoTHubBufferPool class keeps a bounded set of reusable heap {@link ByteBuffer}s so the
+ * transports do not allocate a new buffer for every message.
+ */
+public class AwsIoTHubBufferPool
+{
+  private static final int                     MIN_CAPACITY = 1024;
+
+  private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+  public AwsIoTHubBufferPool(int poolSize)
+  {
+    buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, poolSize));
+  }
+
+  /**
+   * Takes a cleared buffer with at least <code>minCapacity</code> bytes of room. A pooled buffer
+   * that is too small is dropped and replaced by a larger one, so the pool settles at the size of
+   * the largest messages seen.
+   */
+  public ByteBuffer acquire(int minCapacity)
+  {
+    ByteBuffer bb = buffers.poll();
+    if (bb == null || bb.capacity() < minCapacity)
+    {
+      bb = ByteBuffer.allocate(capacityFor(minCapacity));
+    }
+    bb.clear();
+    return bb;
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers beyond the pool size are left to the garbage collector.
+   */
+  public void release(ByteBuffer bb)
+  {
+    if (bb != null)
+    {
+      bb.clear();
+      buffers.offer(bb);
+    }
+  }
+
+  private static int capacityFor(int minCapacity)
+  {
+    if (minCapacity <= MIN_CAPACITY)
+      return MIN_CAPACITY;
+    int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+    return capacity > 0 ? capacity : Integer.MAX_VALUE;
+  }
+}
@@ -0,0 +1,272 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * AwsIoTHubCodec class compresses outbound payloads with deflate (zlib format) or gzip, and
+ * recognizes and decompresses either format on the inbound side. A codec is used by one thread at
+ * a time; the transports take them from an {@link AwsIoTHubCodecPool}, so the deflaters, inflaters
+ * and work buffers are reused for every message instead of being created per message.
+ */
+public final class AwsIoTHubCodec
+{
+  public enum Compression
+  {
+    NONE,
+    DEFLATE,
+    GZIP
+  };
+
+  private static final int                         GZIP_MAGIC_1 = 0x1f;
+  private static final int                         GZIP_MAGIC_2 = 0x8b;
+  private static final int                         FHCRC        = 2;
+  private static final int                         FEXTRA       = 4;
+  private static final int                         FNAME        = 8;
+  private static final int                         FCOMMENT     = 16;
+  private static final int                         INITIAL_BUFFER = 8192;
+  // a work buffer grown past this by one large payload is given back before the next one
+  private static final int                         RETAINED_BUFFER = 256 * 1024;
+
+  /**
+   * Returned by {@link #decompress} for a payload that inflates beyond the allowed size.
+   */
+  public static final int                          TOO_LARGE    = -2;
+
+  private static final byte[]                      GZIP_HEADER  = { (byte) GZIP_MAGIC_1, (byte) GZIP_MAGIC_2, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  private final Deflater                           zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+  private final Deflater                           rawDeflater  = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final Inflater                           zlibInflater = new Inflater(false);
+  private final Inflater                           rawInflater  = new Inflater(true);
+  private final CRC32                              crc          = new CRC32();
+  private byte[]                                   buffer       = new byte[INITIAL_BUFFER];
+
+  AwsIoTHubCodec()
+  {
+  }
+
+  /**
+   * Releases the native zlib memory of this codec, which cannot be used afterwards.
+   */
+  public void end()
+  {
+    zlibDeflater.end();
+    rawDeflater.end();
+    zlibInflater.end();
+    rawInflater.end();
+  }
+
+  public static Compression parseCompression(String value)
+  {
+    try
+    {
+      return Compression.valueOf(value.trim().toUpperCase());
+    }
+    catch (Exception e)
+    {
+      return Compression.NONE;
+    }
+  }
+
+  /**
+   * @return the compressed payload in a new array of its exact size, since the MQTT client keeps
+   *         the array until the publish completes
+   */
+  public byte[] compress(Compression compression, byte[] bytes, int offset, int length)
+  {
+    if (compression == null || compression == Compression.NONE)
+      return (offset == 0 && length == bytes.length) ? bytes : Arrays.copyOfRange(bytes, offset, offset + length);
+
+    shrinkBuffer();
+    boolean gzip = compression == Compression.GZIP;
+    Deflater deflater = gzip ? rawDeflater : zlibDeflater;
+    deflater.reset();
+    deflater.setInput(bytes, offset, length);
+    deflater.finish();
+
+    int position = 0;
+    if (gzip)
+    {
+      System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+      position = GZIP_HEADER.length;
+    }
+    while (!deflater.finished())
+    {
+      if (position == buffer.length)
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      position += deflater.deflate(buffer, position, buffer.length - position);
+    }
+    if (gzip)
+    {
+      crc.reset();
+      crc.update(bytes, offset, length);
+      if (position + 8 > buffer.length)
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      position = writeIntLE(buffer, position, (int) crc.getValue());
+      position = writeIntLE(buffer, position, length);
+    }
+    return Arrays.copyOf(buffer, position);
+  }
+
+  /**
+   * Decompresses a gzip or zlib payload into this codec's work buffer.
+   *
+   * @param maxLength the largest decompressed size accepted, which bounds what a small hostile
+   *          payload can make the codec allocate
+   * @return the decompressed length, available from {@link #getBuffer()} until the next call on
+   *         this codec, -1 if the payload is not compressed or {@link #TOO_LARGE}
+   */
+  public int decompress(byte[] bytes, int offset, int length, int maxLength)
+  {
+    shrinkBuffer();
+    if (isGzip(bytes, offset, length))
+    {
+      int headerLength = gzipHeaderLength(bytes, offset, length);
+      // the 8 byte trailer holds the CRC and the uncompressed size
+      if (headerLength < 0 || headerLength + 8 > length)
+        return -1;
+      int decompressed = inflate(rawInflater, bytes, offset + headerLength, length - headerLength - 8, maxLength);
+      if (decompressed >= 0)
+      {
+        crc.reset();
+        crc.update(buffer, 0, decompressed);
+        if ((int) crc.getValue() != readIntLE(bytes, offset + length - 8))
+          return -1;
+      }
+      return decompressed;
+    }
+    if (isZlib(bytes, offset, length))
+      return inflate(zlibInflater, bytes, offset, length, maxLength);
+    return -1;
+  }
+
+  public byte[] getBuffer()
+  {
+    return buffer;
+  }
+
+  public static boolean isGzip(byte[] bytes, int offset, int length)
+  {
+    return length >= 18 && (bytes[offset] & 0xff) == GZIP_MAGIC_1 && (bytes[offset + 1] & 0xff) == GZIP_MAGIC_2 && bytes[offset + 2] == 8;
+  }
+
+  /**
+   * A zlib stream starts with a compression method of 8 and a header checksum. Some text passes
+   * these checks too (<code>"x "</code> does), so a payload only counts as compressed if it also
+   * inflates cleanly.
+   */
+  public static boolean isZlib(byte[] bytes, int offset, int length)
+  {
+    if (length < 6)
+      return false;
+    int cmf = bytes[offset] & 0xff;
+    int flg = bytes[offset + 1] & 0xff;
+    return (cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+  }
+
+  private int inflate(Inflater inflater, byte[] bytes, int offset, int length, int maxLength)
+  {
+    inflater.reset();
+    inflater.setInput(bytes, offset, length);
+    int position = 0;
+    try
+    {
+      while (!inflater.finished())
+      {
+        if (position == buffer.length)
+        {
+          if (buffer.length >= maxLength)
+            return TOO_LARGE;
+          buffer = Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, Math.max(maxLength, INITIAL_BUFFER)));
+        }
+        int inflated = inflater.inflate(buffer, position, buffer.length - position);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          return -1;
+        position += inflated;
+        // a buffer kept from an earlier, larger payload can hold more than is allowed
+        if (position > maxLength)
+          return TOO_LARGE;
+      }
+      return position;
+    }
+    catch (DataFormatException e)
+    {
+      // not compressed after all; the caller passes the payload through as it is
+      return -1;
+    }
+  }
+
+  private void shrinkBuffer()
+  {
+    if (buffer.length > RETAINED_BUFFER)
+      buffer = new byte[INITIAL_BUFFER];
+  }
+
+  private static int gzipHeaderLength(byte[] bytes, int offset, int length)
+  {
+    int flags = bytes[offset + 3] & 0xff;
+    int i = 10;
+    if ((flags & FEXTRA) != 0)
+    {
+      if (i + 2 > length)
+        return -1;
+      i += 2 + ((bytes[offset + i] & 0xff) | ((bytes[offset + i + 1] & 0xff) << 8));
+    }
+    if ((flags & FNAME) != 0)
+      i = skipZeroTerminated(bytes, offset, i, length);
+    if (i >= 0 && (flags & FCOMMENT) != 0)
+      i = skipZeroTerminated(bytes, offset, i, length);
+    if (i >= 0 && (flags & FHCRC) != 0)
+      i += 2;
+    return (i >= 0 && i <= length) ? i : -1;
+  }
+
+  private static int skipZeroTerminated(byte[] bytes, int offset, int i, int length)
+  {
+    while (i < length && bytes[offset + i] != 0)
+      i++;
+    return i < length ? i + 1 : -1;
+  }
+
+  private static int writeIntLE(byte[] bytes, int position, int value)
+  {
+    bytes[position++] = (byte) value;
+    bytes[position++] = (byte) (value >>> 8);
+    bytes[position++] = (byte) (value >>> 16);
+    bytes[position++] = (byte) (value >>> 24);
+    return position;
+  }
+
+  private static int readIntLE(byte[] bytes, int position)
+  {
+    return (bytes[position] & 0xff) | ((bytes[position + 1] & 0xff) << 8) | ((bytes[position + 2] & 0xff) << 16) | ((bytes[position + 3] & 0xff) << 24);
+  }
+}
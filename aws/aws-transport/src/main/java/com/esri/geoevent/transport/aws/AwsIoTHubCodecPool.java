@@ -0,0 +1,76 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * AwsIoTHubCodecPool class keeps a bounded set of reusable {@link AwsIoTHubCodec}s for one
+ * transport. The codecs hold native zlib memory, so the pool ends them when the transport stops
+ * rather than leaving them on pooled GeoEvent threads.
+ */
+public class AwsIoTHubCodecPool
+{
+  private final ArrayBlockingQueue<AwsIoTHubCodec> codecs;
+  private volatile boolean                         closed = false;
+
+  public AwsIoTHubCodecPool(int poolSize)
+  {
+    codecs = new ArrayBlockingQueue<AwsIoTHubCodec>(Math.max(1, poolSize));
+  }
+
+  public AwsIoTHubCodec acquire()
+  {
+    AwsIoTHubCodec codec = codecs.poll();
+    return codec != null ? codec : new AwsIoTHubCodec();
+  }
+
+  /**
+   * Returns a codec to the pool. Codecs beyond the pool size, or returned after {@link #close()},
+   * are ended.
+   */
+  public void release(AwsIoTHubCodec codec)
+  {
+    if (closed || !codecs.offer(codec))
+    {
+      codec.end();
+      return;
+    }
+    // a close that ran while the codec was offered has not seen it
+    if (closed && codecs.remove(codec))
+      codec.end();
+  }
+
+  /**
+   * Ends the pooled codecs; the ones still in use are ended when they are released.
+   */
+  public void close()
+  {
+    closed = true;
+    AwsIoTHubCodec codec;
+    while ((codec = codecs.poll()) != null)
+      codec.end();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esri.ges.util.Validator;
+
+/**
+ * AwsIoTHubConnectionPool class spreads outbound publishing over several MQTT connections. Records
+ * carrying the same partition key field value always go through the same connection, so the
+ * order of each track is preserved while the connections publish in parallel. Records without a
+ * key are spread round-robin.
+ */
+public class AwsIoTHubConnectionPool
+{
+  private final AwsIoTHubMqttClient[] clients;
+  private final byte[][]              partitionKeyPath;
+  private final AtomicInteger         nextClient = new AtomicInteger();
+  private final ThreadLocal<int[]>    ranges     = ThreadLocal.withInitial(() -> new int[4]);
+
+  public AwsIoTHubConnectionPool(List<AwsIoTHubMqttClient> clients, String partitionKeyField)
+  {
+    this.clients = clients.toArray(new AwsIoTHubMqttClient[clients.size()]);
+    this.partitionKeyPath = Validator.isNotBlank(partitionKeyField) ? AwsIoTHubJsonScanner.compilePath(partitionKeyField) : null;
+  }
+
+  /**
+   * @return the index of the connection that should publish the record
+   */
+  public int select(byte[] bytes, int offset, int length)
+  {
+    if (clients.length == 1)
+      return 0;
+
+    if (partitionKeyPath != null)
+    {
+      int[] range = ranges.get();
+      if (AwsIoTHubJsonScanner.findField(bytes, offset, offset + length, partitionKeyPath, range))
+      {
+        int hash = AwsIoTHubJsonScanner.hash(bytes, AwsIoTHubJsonScanner.contentStart(bytes, range), AwsIoTHubJsonScanner.contentEnd(bytes, range));
+        return (hash & Integer.MAX_VALUE) % clients.length;
+      }
+    }
+    return (nextClient.getAndIncrement() & Integer.MAX_VALUE) % clients.length;
+  }
+
+  public AwsIoTHubMqttClient get(int index)
+  {
+    return clients[index];
+  }
+
+  public int size()
+  {
+    return clients.length;
+  }
+}
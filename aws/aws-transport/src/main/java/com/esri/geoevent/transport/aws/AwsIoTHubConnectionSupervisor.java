@@ -0,0 +1,243 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubConnectionSupervisor class connects the clients of a transport on its own thread and
+ * keeps them connected. A failed connect is retried after a jittered exponential backoff, and so is
+ * a connection the device SDK gave up on after exhausting its own retries. Reconnecting reuses the
+ * same client objects, which resubscribe their topics and reactivate their attached devices when
+ * the connection comes back.
+ */
+public class AwsIoTHubConnectionSupervisor implements AwsIoTHubMqttClient.ConnectionListener
+{
+  private static final BundleLogger LOGGER = BundleLoggerFactory.getLogger(AwsIoTHubConnectionSupervisor.class);
+
+  public enum State
+  {
+    CONNECTING, CONNECTED, RECONNECTING, STOPPED
+  }
+
+  public interface Connector
+  {
+    /**
+     * Connects whatever is not connected yet; called again after a failure.
+     */
+    void connect() throws Exception;
+  }
+
+  public interface Listener
+  {
+    void stateChanged(State state, String detail);
+  }
+
+  private final String                   name;
+  private final Connector                connector;
+  private final BooleanSupplier          connected;
+  private final Listener                 listener;
+  private final long                     baseDelayMillis;
+  private final long                     maxDelayMillis;
+  private final ScheduledExecutorService executor;
+  private volatile State                 state     = State.STOPPED;
+  private volatile String                detail    = null;
+  private boolean                        stopped   = true;
+  private boolean                        pending   = false;
+  private int                            failures  = 0;
+  private long                           reconnects = 0;
+
+  public AwsIoTHubConnectionSupervisor(String name, Connector connector, BooleanSupplier connected, Listener listener, long baseDelayMillis, long maxDelayMillis)
+  {
+    this.name = name;
+    this.connector = connector;
+    this.connected = connected;
+    this.listener = listener;
+    this.baseDelayMillis = Math.max(1, baseDelayMillis);
+    this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-supervisor");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public synchronized void start()
+  {
+    stopped = false;
+    setState(State.CONNECTING, null);
+    schedule(0);
+  }
+
+  public void stop()
+  {
+    synchronized (this)
+    {
+      stopped = true;
+      pending = false;
+    }
+    executor.shutdownNow();
+    setState(State.STOPPED, null);
+  }
+
+  public State getState()
+  {
+    return state;
+  }
+
+  public String getDetail()
+  {
+    return detail;
+  }
+
+  /**
+   * @return what the supervisor is waiting for, or <code>null</code> while connected or stopped
+   */
+  public String getStatus()
+  {
+    State currentState = state;
+    if (currentState == State.CONNECTED || currentState == State.STOPPED)
+      return null;
+    String currentDetail = detail;
+    return LOGGER.translate("CONNECTION_STATUS", currentState, getFailures(), (currentDetail != null) ? currentDetail : "");
+  }
+
+  public synchronized int getFailures()
+  {
+    return failures;
+  }
+
+  public synchronized long getReconnects()
+  {
+    return reconnects;
+  }
+
+  @Override
+  public void connectionSucceeded(AwsIoTHubMqttClient client)
+  {
+    synchronized (this)
+    {
+      // a connect this supervisor is running reports for itself
+      if (stopped || pending || state == State.CONNECTED || !connected.getAsBoolean())
+        return;
+      failures = 0;
+    }
+    setState(State.CONNECTED, null);
+  }
+
+  @Override
+  public void connectionFailed(AwsIoTHubMqttClient client)
+  {
+    synchronized (this)
+    {
+      if (stopped || state != State.CONNECTED)
+        return;
+    }
+    // the device SDK retries on its own first
+    setState(State.RECONNECTING, LOGGER.translate("CONNECTION_LOST", client.getClientId()));
+  }
+
+  @Override
+  public void connectionClosed(AwsIoTHubMqttClient client)
+  {
+    synchronized (this)
+    {
+      if (stopped || pending)
+        return;
+      reconnects++;
+      long delay = nextDelay();
+      setState(State.RECONNECTING, LOGGER.translate("RECONNECT_SCHEDULED", delay, LOGGER.translate("CONNECTION_CLOSED", client.getClientId())));
+      schedule(delay);
+    }
+  }
+
+  private void attempt()
+  {
+    synchronized (this)
+    {
+      if (stopped)
+        return;
+    }
+    try
+    {
+      connector.connect();
+      synchronized (this)
+      {
+        pending = false;
+        if (stopped)
+          return;
+        failures = 0;
+      }
+      setState(State.CONNECTED, null);
+    }
+    catch (Exception e)
+    {
+      synchronized (this)
+      {
+        pending = false;
+        if (stopped)
+          return;
+        failures++;
+        long delay = nextDelay();
+        LOGGER.warn("CONNECT_FAILED", e);
+        setState(State.RECONNECTING, LOGGER.translate("RECONNECT_SCHEDULED", delay, e.getMessage()));
+        schedule(delay);
+      }
+    }
+  }
+
+  /**
+   * @return a delay between half and all of <code>base * 2^failures</code>, capped at the maximum,
+   *         so transports that lost the same broker do not come back all at once
+   */
+  private long nextDelay()
+  {
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures, 20));
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  private void schedule(long delayMillis)
+  {
+    pending = true;
+    executor.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void setState(State newState, String newDetail)
+  {
+    State oldState = state;
+    state = newState;
+    detail = newDetail;
+    if (oldState != newState)
+      LOGGER.info("CONNECTION_STATE_CHANGED", name, oldState, newState, (newDetail != null) ? newDetail : "");
+    listener.stateChanged(newState, newDetail);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
+
+/**
+ * AwsIoTHubCredentialCache class shares the key store built from a certificate and private key file
+ * pair across every transport in the process. The files are parsed once and the result is reused
+ * for as long as both files keep their modification time and size; a changed file is parsed again
+ * the next time a transport starts. A running transport keeps the key store it started with, since
+ * the device SDK builds its socket factory once per client, so rotated files take effect when the
+ * transport is restarted. Transports starting together with the same files wait for a single parse
+ * instead of each doing their own. An entry is dropped once the last transport using it releases it.
+ */
+public final class AwsIoTHubCredentialCache
+{
+  private static final class Entry
+  {
+    long                 certificateModified;
+    long                 certificateLength;
+    long                 privateKeyModified;
+    long                 privateKeyLength;
+    KeyStorePasswordPair pair;
+    int                  users;
+    boolean              removed;
+  }
+
+  private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+
+  private AwsIoTHubCredentialCache()
+  {
+  }
+
+  /**
+   * Gets the key store of a certificate and private key file pair for a transport, which calls
+   * {@link #release(String, String)} with the same files once it no longer needs it.
+   *
+   * @return the key store of the certificate and private key files, or <code>null</code> if they
+   *         cannot be read, in which case the next call tries again
+   */
+  public static KeyStorePasswordPair get(String certificateFile, String privateKeyFile)
+  {
+    if (certificateFile == null || privateKeyFile == null)
+      return AwsIoTHubUtil.getKeyStorePasswordPair(certificateFile, privateKeyFile, null);
+
+    File certificate = new File(certificateFile);
+    File privateKey = new File(privateKeyFile);
+    String key = key(certificateFile, privateKeyFile);
+    while (true)
+    {
+      Entry entry = ENTRIES.get(key);
+      if (entry == null)
+      {
+        Entry newEntry = new Entry();
+        entry = ENTRIES.putIfAbsent(key, newEntry);
+        if (entry == null)
+          entry = newEntry;
+      }
+
+      synchronized (entry)
+      {
+        // released by its last user between the lookup and here; look again
+        if (entry.removed)
+          continue;
+        entry.users++;
+        return load(entry, certificate, privateKey);
+      }
+    }
+  }
+
+  /**
+   * Gives up one use of a file pair's key store, dropping it from the cache once nobody uses it.
+   */
+  public static void release(String certificateFile, String privateKeyFile)
+  {
+    if (certificateFile == null || privateKeyFile == null)
+      return;
+
+    String key = key(certificateFile, privateKeyFile);
+    Entry entry = ENTRIES.get(key);
+    if (entry == null)
+      return;
+    synchronized (entry)
+    {
+      if (entry.users > 0 && --entry.users == 0)
+      {
+        entry.removed = true;
+        entry.pair = null;
+        ENTRIES.remove(key, entry);
+      }
+    }
+  }
+
+  private static String key(String certificateFile, String privateKeyFile)
+  {
+    return new File(certificateFile).getAbsolutePath() + File.pathSeparator + new File(privateKeyFile).getAbsolutePath();
+  }
+
+  /**
+   * Parses the files again unless the entry holds a key store of the files as they are now. Must
+   * be called holding the entry's lock.
+   */
+  private static KeyStorePasswordPair load(Entry entry, File certificate, File privateKey)
+  {
+    long certificateModified = certificate.lastModified();
+    long certificateLength = certificate.length();
+    long privateKeyModified = privateKey.lastModified();
+    long privateKeyLength = privateKey.length();
+    if (entry.pair == null || entry.certificateModified != certificateModified || entry.certificateLength != certificateLength || entry.privateKeyModified != privateKeyModified
+        || entry.privateKeyLength != privateKeyLength)
+    {
+      entry.pair = AwsIoTHubUtil.getKeyStorePasswordPair(certificate.getPath(), privateKey.getPath(), null);
+      entry.certificateModified = certificateModified;
+      entry.certificateLength = certificateLength;
+      entry.privateKeyModified = privateKeyModified;
+      entry.privateKeyLength = privateKeyLength;
+    }
+    return entry.pair;
+  }
+}
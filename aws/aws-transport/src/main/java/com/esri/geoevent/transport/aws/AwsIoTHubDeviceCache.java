@@ -0,0 +1,255 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+import com.esri.ges.util.Validator;
+
+/**
+ * AwsIoTHubDeviceCache class keeps the {@link AwsIoTHubDevice}s of the things an output updates
+ * attached to the MQTT client. Devices are attached the first time their thing is seen and
+ * detached again when they have been idle for too long or when the cache is full, least recently
+ * used first, so one output can keep many shadows current without attaching all of them at once.
+ */
+public class AwsIoTHubDeviceCache
+{
+  private static final BundleLogger            LOGGER  = BundleLoggerFactory.getLogger(AwsIoTHubDeviceCache.class);
+
+  private final AWSIotMqttClient               client;
+  private final String                         defaultThingName;
+  private final byte[][]                       thingNamePath;
+  private final int                            maxSize;
+  private final long                           idleTimeoutMillis;
+  private final LinkedHashMap<String, Entry>   devices = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final ScheduledExecutorService       sweeper;
+
+  private static final class Entry
+  {
+    final AwsIoTHubDevice         device;
+    // completes once the device is attached, so gets of the same thing wait for one attach
+    final CompletableFuture<Void> attached = new CompletableFuture<Void>();
+    long                          lastUsed;
+
+    Entry(AwsIoTHubDevice device)
+    {
+      this.device = device;
+    }
+  }
+
+  /**
+   * @param thingNameField field holding the thing name of each record; when empty every record
+   *          goes to <code>defaultThingName</code>
+   */
+  public AwsIoTHubDeviceCache(String name, AWSIotMqttClient client, String defaultThingName, String thingNameField, int maxSize, long idleTimeoutMillis)
+  {
+    this.client = client;
+    this.defaultThingName = defaultThingName;
+    this.thingNamePath = Validator.isNotBlank(thingNameField) ? AwsIoTHubJsonScanner.compilePath(thingNameField) : null;
+    this.maxSize = Math.max(1, maxSize);
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-device-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void start()
+  {
+    if (idleTimeoutMillis > 0)
+    {
+      long period = Math.max(1000, idleTimeoutMillis / 2);
+      sweeper.scheduleWithFixedDelay(this::detachIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void stop()
+  {
+    sweeper.shutdownNow();
+    List<Entry> detached;
+    synchronized (this)
+    {
+      detached = new ArrayList<Entry>(devices.values());
+      devices.clear();
+    }
+    for (Entry entry : detached)
+      detach(entry);
+  }
+
+  /**
+   * @return the thing name of a record, or <code>null</code> if it has none
+   */
+  public String getThingName(byte[] bytes, int offset, int length)
+  {
+    if (thingNamePath == null)
+      return defaultThingName;
+
+    int[] range = new int[4];
+    if (!AwsIoTHubJsonScanner.findField(bytes, offset, offset + length, thingNamePath, range))
+      return null;
+    int start = AwsIoTHubJsonScanner.contentStart(bytes, range);
+    int end = AwsIoTHubJsonScanner.contentEnd(bytes, range);
+    return end > start ? new String(bytes, start, end - start, StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * @return the attached device of a thing, attaching it first if needed. The attach runs outside
+   *         the cache lock, so a slow attach only holds up the records of its own thing.
+   */
+  public AwsIoTHubDevice get(String thingName) throws AWSIotException
+  {
+    Entry entry;
+    Entry evicted = null;
+    boolean attach = false;
+    synchronized (this)
+    {
+      entry = devices.get(thingName);
+      if (entry == null)
+      {
+        if (devices.size() >= maxSize)
+        {
+          Iterator<Entry> eldest = devices.values().iterator();
+          evicted = eldest.next();
+          eldest.remove();
+        }
+        entry = new Entry(new AwsIoTHubDevice(thingName));
+        devices.put(thingName, entry);
+        attach = true;
+      }
+      entry.lastUsed = System.currentTimeMillis();
+    }
+    if (evicted != null)
+      detach(evicted);
+
+    if (attach)
+      attach(entry);
+    else
+      awaitAttached(entry);
+    return entry.device;
+  }
+
+  public synchronized int size()
+  {
+    return devices.size();
+  }
+
+  private void attach(Entry entry) throws AWSIotException
+  {
+    try
+    {
+      LOGGER.debug("DEVICE_ATTACHING", entry.device.getThingName());
+      client.attach(entry.device);
+      entry.attached.complete(null);
+    }
+    catch (AWSIotException | RuntimeException e)
+    {
+      // forget the failed attach so the next record of the thing tries again
+      synchronized (this)
+      {
+        devices.remove(entry.device.getThingName(), entry);
+      }
+      entry.attached.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private void awaitAttached(Entry entry) throws AWSIotException
+  {
+    try
+    {
+      entry.attached.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new AWSIotException(e.toString());
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof AWSIotException)
+        throw (AWSIotException) cause;
+      throw new AWSIotException(String.valueOf(cause));
+    }
+  }
+
+  private void detachIdle()
+  {
+    List<Entry> idle = new ArrayList<Entry>();
+    long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+    synchronized (this)
+    {
+      Iterator<Map.Entry<String, Entry>> entries = devices.entrySet().iterator();
+      while (entries.hasNext())
+      {
+        // access order puts the least recently used devices first
+        Entry entry = entries.next().getValue();
+        if (entry.lastUsed > cutoff)
+          break;
+        idle.add(entry);
+        entries.remove();
+      }
+    }
+    for (Entry entry : idle)
+      detach(entry);
+  }
+
+  private void detach(Entry entry)
+  {
+    // a device still being attached is detached once its attach is done; a failed one needs none
+    try
+    {
+      entry.attached.join();
+    }
+    catch (RuntimeException e)
+    {
+      return;
+    }
+    try
+    {
+      LOGGER.debug("DEVICE_DETACHING", entry.device.getThingName());
+      client.detach(entry.device);
+    }
+    catch (Exception e)
+    {
+      LOGGER.warn("DEVICE_DETACH_ERROR", e);
+    }
+  }
+}
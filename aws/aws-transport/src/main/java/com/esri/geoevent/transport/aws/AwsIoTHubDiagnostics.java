@@ -0,0 +1,214 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * AwsIoTHubDiagnostics class replaces logging every payload with two cheap tools. Per message log
+ * lines go through {@link #allowLog()}, which lets a limited number through per second. Payloads
+ * are only looked at when an operator asks for them: one message in N, or the next K messages, is
+ * copied into a bounded ring that can be read through JMX. With both off, a message costs two
+ * volatile reads.
+ */
+public class AwsIoTHubDiagnostics implements AwsIoTHubDiagnosticsMBean
+{
+  public static final int           MAX_CAPTURE_BYTES = 4096;
+  public static final int           LOG_LINES_PER_SECOND = 10;
+
+  private static final class Capture
+  {
+    final long   timestamp;
+    final String direction;
+    final String topic;
+    final byte[] payload;
+    final int    length;
+
+    Capture(String direction, String topic, byte[] bytes, int offset, int length)
+    {
+      this.timestamp = System.currentTimeMillis();
+      this.direction = direction;
+      this.topic = topic;
+      this.payload = Arrays.copyOfRange(bytes, offset, offset + Math.min(length, MAX_CAPTURE_BYTES));
+      this.length = length;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder line = new StringBuilder(payload.length + 64);
+      line.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(timestamp)));
+      line.append(' ').append(direction).append(' ').append(topic).append(' ');
+      line.append(new String(payload, StandardCharsets.UTF_8));
+      if (length > payload.length)
+        line.append(" ...(").append(length).append(" bytes)");
+      return line.toString();
+    }
+  }
+
+  private final String        type;
+  private final Capture[]     ring;
+  private int                 next          = 0;
+  private int                 size          = 0;
+  private volatile int        sampleRate;
+  private final AtomicInteger triggered     = new AtomicInteger();
+  private final AtomicLong    seen          = new AtomicLong();
+  private final AtomicLong    captured      = new AtomicLong();
+  private final AtomicLong    logWindow     = new AtomicLong();
+  private final AtomicInteger logLines      = new AtomicInteger();
+  private final AtomicLong    logsSuppressed = new AtomicLong();
+  private ObjectName          objectName    = null;
+
+  public AwsIoTHubDiagnostics(String type, int sampleRate, int captureCapacity)
+  {
+    this.type = type;
+    this.sampleRate = Math.max(0, sampleRate);
+    this.ring = new Capture[Math.max(1, captureCapacity)];
+  }
+
+  /**
+   * Offers a message for capture. The payload is only copied when it is sampled.
+   */
+  public void capture(String direction, String topic, byte[] bytes, int offset, int length)
+  {
+    int rate = sampleRate;
+    if (rate == 0 && triggered.get() <= 0)
+      return;
+    boolean take = false;
+    int remaining;
+    while (!take && (remaining = triggered.get()) > 0)
+      take = triggered.compareAndSet(remaining, remaining - 1);
+    if (!take && rate > 0)
+      take = seen.incrementAndGet() % rate == 0;
+    if (!take)
+      return;
+    Capture capture = new Capture(direction, topic, bytes, offset, length);
+    synchronized (ring)
+    {
+      ring[next] = capture;
+      next = (next + 1) % ring.length;
+      size = Math.min(size + 1, ring.length);
+    }
+    captured.incrementAndGet();
+  }
+
+  /**
+   * @return <code>true</code> if another per message log line fits in the current second; callers
+   *         check the log level first so the arguments are never built for nothing
+   */
+  public boolean allowLog()
+  {
+    long second = System.currentTimeMillis() / 1000;
+    long window = logWindow.get();
+    if (window != second && logWindow.compareAndSet(window, second))
+    {
+      int skipped = logLines.getAndSet(0) - LOG_LINES_PER_SECOND;
+      if (skipped > 0)
+        logsSuppressed.addAndGet(skipped);
+    }
+    return logLines.incrementAndGet() <= LOG_LINES_PER_SECOND;
+  }
+
+  public long getSuppressedLogCount()
+  {
+    return logsSuppressed.get();
+  }
+
+  public synchronized void register(String name)
+  {
+    unregister();
+    objectName = AwsIoTHubMetrics.registerMBean(this, type, name, "diagnostics");
+  }
+
+  public synchronized void unregister()
+  {
+    AwsIoTHubMetrics.unregisterMBean(objectName);
+    objectName = null;
+  }
+
+  @Override
+  public int getSampleRate()
+  {
+    return sampleRate;
+  }
+
+  @Override
+  public void setSampleRate(int sampleRate)
+  {
+    this.sampleRate = Math.max(0, sampleRate);
+  }
+
+  @Override
+  public void captureNext(int count)
+  {
+    triggered.set(Math.max(0, count));
+  }
+
+  @Override
+  public int getCaptureCapacity()
+  {
+    return ring.length;
+  }
+
+  @Override
+  public long getCapturedCount()
+  {
+    return captured.get();
+  }
+
+  @Override
+  public String[] getCapturedMessages()
+  {
+    Capture[] captures;
+    synchronized (ring)
+    {
+      captures = new Capture[size];
+      for (int i = 0; i < size; i++)
+        captures[i] = ring[(next - size + i + ring.length) % ring.length];
+    }
+    String[] lines = new String[captures.length];
+    for (int i = 0; i < captures.length; i++)
+      lines[i] = captures[i].toString();
+    return lines;
+  }
+
+  @Override
+  public void clearCaptured()
+  {
+    synchronized (ring)
+    {
+      Arrays.fill(ring, null);
+      next = 0;
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AwsIoTHubDuplicateFilter class drops the messages a QoS1 subscription delivers more than once.
+ * Messages are keyed on a 64-bit hash of their topic and payload, remembered in two generations of
+ * an open-addressing hash set. The current generation takes new keys and the previous one is only
+ * looked up; they are swapped every half window or when the current one is full, so memory is
+ * fixed and a repeat is caught for at least half the window.
+ */
+public class AwsIoTHubDuplicateFilter
+{
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME  = 0x100000001b3L;
+
+  private final long        halfWindowNanos;
+  private final int         maxEntries;
+  private final int         mask;
+  private long[]            current;
+  private long[]            previous;
+  private int               currentSize = 0;
+  private long              generationStartNanos;
+  private long              checked     = 0;
+  private long              duplicates  = 0;
+
+  /**
+   * @param windowMillis how long a message is remembered
+   * @param maxEntries how many messages one generation remembers before it is swapped early
+   */
+  public AwsIoTHubDuplicateFilter(long windowMillis, int maxEntries)
+  {
+    this.halfWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(2, windowMillis)) / 2;
+    this.maxEntries = Math.max(16, maxEntries);
+    // kept at most half full, so probe sequences stay short
+    int capacity = Integer.highestOneBit(this.maxEntries * 2 - 1) << 1;
+    this.mask = capacity - 1;
+    this.current = new long[capacity];
+    this.previous = new long[capacity];
+    this.generationStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Records a message.
+   *
+   * @return <code>true</code> if the same message was seen within the window and should be dropped
+   */
+  public boolean isDuplicate(String topic, byte[] bytes, int offset, int length)
+  {
+    long key = key(topic, bytes, offset, length);
+    synchronized (this)
+    {
+      checked++;
+      long now = System.nanoTime();
+      if (currentSize >= maxEntries || now - generationStartNanos >= halfWindowNanos)
+        rotate(now);
+      if (contains(previous, key) || !insert(current, key))
+      {
+        duplicates++;
+        return true;
+      }
+      currentSize++;
+      return false;
+    }
+  }
+
+  public synchronized long getCheckedCount()
+  {
+    return checked;
+  }
+
+  public synchronized long getDuplicateCount()
+  {
+    return duplicates;
+  }
+
+  private void rotate(long now)
+  {
+    long[] cleared = previous;
+    Arrays.fill(cleared, 0L);
+    previous = current;
+    current = cleared;
+    currentSize = 0;
+    generationStartNanos = now;
+  }
+
+  private boolean contains(long[] table, long key)
+  {
+    for (int i = index(key); ; i = (i + 1) & mask)
+    {
+      long entry = table[i];
+      if (entry == key)
+        return true;
+      if (entry == 0)
+        return false;
+    }
+  }
+
+  /**
+   * @return <code>false</code> if the key was already there
+   */
+  private boolean insert(long[] table, long key)
+  {
+    for (int i = index(key); ; i = (i + 1) & mask)
+    {
+      long entry = table[i];
+      if (entry == key)
+        return false;
+      if (entry == 0)
+      {
+        table[i] = key;
+        return true;
+      }
+    }
+  }
+
+  private int index(long key)
+  {
+    // murmur3 finalizer, FNV leaves the low bits poorly mixed
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the topic and payload; zero marks an empty slot, so it is never a key.
+   */
+  static long key(String topic, byte[] bytes, int offset, int length)
+  {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < topic.length(); i++)
+    {
+      hash ^= topic.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    for (int i = offset; i < offset + length; i++)
+    {
+      hash ^= bytes[i] & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return (hash == 0) ? 1 : hash;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+import com.esri.ges.transport.ByteListener;
+
+/**
+ * AwsIoTHubInboundBatcher class coalesces newline delimited records into pooled buffers, one per
+ * channel, and hands a batch to the adapter when it reaches a byte budget, a record count or its
+ * linger time, whichever comes first.
+ */
+public class AwsIoTHubInboundBatcher
+{
+  private static final BundleLogger       LOGGER            = BundleLoggerFactory.getLogger(AwsIoTHubInboundBatcher.class);
+
+  // caps the memory held by open batches when a wildcard subscription matches many topics
+  private static final int                MAX_OPEN_BATCHES  = 32;
+
+  private final AwsIoTHubBufferPool       pool;
+  private final ByteListener              listener;
+  private final int                       maxBytes;
+  private final int                       maxRecords;
+  private final long                      lingerNanos;
+  private final ScheduledExecutorService  flusher;
+  private final LinkedHashMap<String, Batch> openBatches    = new LinkedHashMap<String, Batch>();
+  private boolean                         running           = false;
+  private boolean                         flushScheduled    = false;
+
+  private static final class Batch
+  {
+    final String channelId;
+    final ByteBuffer buffer;
+    final long firstRecordNanos;
+    int records = 0;
+
+    Batch(String channelId, ByteBuffer buffer)
+    {
+      this.channelId = channelId;
+      this.buffer = buffer;
+      this.firstRecordNanos = System.nanoTime();
+    }
+  }
+
+  public AwsIoTHubInboundBatcher(String name, AwsIoTHubBufferPool pool, ByteListener listener, int maxBytes, int maxRecords, long lingerMillis)
+  {
+    this.pool = pool;
+    this.listener = listener;
+    this.maxBytes = Math.max(1, maxBytes);
+    this.maxRecords = Math.max(1, maxRecords);
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, lingerMillis));
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-batch-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Enables the linger flush. The flusher only wakes up while a batch is open, once for the oldest
+   * batch's linger deadline.
+   */
+  public synchronized void start()
+  {
+    running = true;
+    if (!openBatches.isEmpty())
+      scheduleFlush(openBatches.values().iterator().next());
+  }
+
+  public void stop()
+  {
+    synchronized (this)
+    {
+      running = false;
+    }
+    flusher.shutdownNow();
+    try
+    {
+      flushAll();
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("UNEXPECTED_ERROR", e);
+    }
+  }
+
+  /**
+   * Appends one record to the batch of its channel, adding the record delimiter when the payload
+   * does not end with one.
+   */
+  public synchronized void add(byte[] bytes, int offset, int length, String channelId)
+  {
+    if (length <= 0)
+      return;
+
+    boolean delimited = bytes[offset + length - 1] == AwsIoTHubInboundDelivery.RECORD_DELIMITER;
+    int recordLength = delimited ? length : length + 1;
+    Batch batch = openBatches.get(channelId);
+    if (batch != null && batch.buffer.remaining() < recordLength)
+    {
+      flush(batch);
+      batch = null;
+    }
+    if (batch == null)
+    {
+      if (openBatches.size() >= MAX_OPEN_BATCHES)
+        flush(openBatches.values().iterator().next());
+      batch = new Batch(channelId, pool.acquire(Math.max(maxBytes, recordLength)));
+      openBatches.put(channelId, batch);
+      scheduleFlush(batch);
+    }
+
+    batch.buffer.put(bytes, offset, length);
+    if (!delimited)
+      batch.buffer.put(AwsIoTHubInboundDelivery.RECORD_DELIMITER);
+    batch.records++;
+
+    if (batch.records >= maxRecords || batch.buffer.position() >= maxBytes)
+      flush(batch);
+  }
+
+  public synchronized void flushAll()
+  {
+    while (!openBatches.isEmpty())
+      flush(openBatches.values().iterator().next());
+  }
+
+  private void flush(Batch batch)
+  {
+    openBatches.remove(batch.channelId);
+    try
+    {
+      batch.buffer.flip();
+      listener.receive(batch.buffer, batch.channelId);
+    }
+    finally
+    {
+      pool.release(batch.buffer);
+    }
+  }
+
+  private void scheduleFlush(Batch oldest)
+  {
+    if (!running || flushScheduled)
+      return;
+    flushScheduled = true;
+    long delay = Math.max(0, oldest.firstRecordNanos + lingerNanos - System.nanoTime());
+    flusher.schedule(this::flushLingered, delay, TimeUnit.NANOSECONDS);
+  }
+
+  private synchronized void flushLingered()
+  {
+    flushScheduled = false;
+    try
+    {
+      // batches are kept in the order they were opened, so the oldest are always first
+      long now = System.nanoTime();
+      Iterator<Batch> batches = openBatches.values().iterator();
+      while (batches.hasNext())
+      {
+        Batch batch = batches.next();
+        if (now - batch.firstRecordNanos < lingerNanos)
+          break;
+        batches.remove();
+        flush(batch);
+      }
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("UNEXPECTED_ERROR", e);
+    }
+    if (!openBatches.isEmpty())
+      scheduleFlush(openBatches.values().iterator().next());
+  }
+}
@@ -0,0 +1,68 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.ByteBuffer;
+
+import com.esri.ges.transport.ByteListener;
+
+/**
+ * AwsIoTHubInboundDelivery class frames a raw MQTT payload as a newline delimited record and hands
+ * it to the adapter. The payload bytes are copied once into a pooled buffer and never decoded, so
+ * the platform charset plays no part and no buffer is allocated per message once the pool is warm.
+ */
+public class AwsIoTHubInboundDelivery
+{
+  public static final byte          RECORD_DELIMITER = '\n';
+
+  private final AwsIoTHubBufferPool pool;
+
+  public AwsIoTHubInboundDelivery(AwsIoTHubBufferPool pool)
+  {
+    this.pool = pool;
+  }
+
+  public void deliver(ByteListener listener, byte[] bytes, int offset, int length, String channelId)
+  {
+    if (listener == null || length <= 0)
+      return;
+
+    boolean delimited = bytes[offset + length - 1] == RECORD_DELIMITER;
+    ByteBuffer bb = pool.acquire(delimited ? length : length + 1);
+    try
+    {
+      bb.put(bytes, offset, length);
+      if (!delimited)
+        bb.put(RECORD_DELIMITER);
+      bb.flip();
+      listener.receive(bb, channelId);
+    }
+    finally
+    {
+      // the adapter consumes the buffer synchronously, so it can be reused right away
+      pool.release(bb);
+    }
+  }
+}
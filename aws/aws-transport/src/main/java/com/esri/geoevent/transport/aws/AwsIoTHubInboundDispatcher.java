@@ -0,0 +1,211 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubInboundDispatcher class hands messages received on the MQTT callback thread over to
+ * bounded queues that are drained by its own dispatcher threads, so a slow adapter cannot stall the
+ * MQTT connection. Each thread has a queue of its own and every topic is routed to the same thread,
+ * so the messages of a topic are delivered one at a time and in order. With more than one thread,
+ * messages of different topics are delivered concurrently.
+ */
+public class AwsIoTHubInboundDispatcher
+{
+  private static final BundleLogger          LOGGER = BundleLoggerFactory.getLogger(AwsIoTHubInboundDispatcher.class);
+
+  public enum OverflowPolicy
+  {
+    BLOCK,
+    DROP_OLDEST,
+    DROP_NEWEST
+  };
+
+  public interface Handler
+  {
+    void handle(AWSIotMessage message);
+  }
+
+  private final BlockingQueue<AWSIotMessage>[] queues;
+  private final int                          capacity;
+  private final OverflowPolicy               overflowPolicy;
+  private final Handler                      handler;
+  private final Thread[]                     threads;
+  private final AtomicLong                   dropped = new AtomicLong();
+  private volatile boolean                   running = false;
+
+  public AwsIoTHubInboundDispatcher(String name, int capacity, int threadCount, OverflowPolicy overflowPolicy, Handler handler)
+  {
+    int threadTotal = Math.max(1, threadCount);
+    int queueCapacity = (Math.max(1, capacity) + threadTotal - 1) / threadTotal;
+    this.capacity = queueCapacity * threadTotal;
+    this.overflowPolicy = overflowPolicy;
+    this.handler = handler;
+    this.queues = newQueues(threadTotal, queueCapacity);
+    this.threads = new Thread[threadTotal];
+    for (int i = 0; i < threads.length; i++)
+    {
+      BlockingQueue<AWSIotMessage> queue = queues[i];
+      threads[i] = new Thread(() -> drain(queue), name + "-dispatcher-" + i);
+      threads[i].setDaemon(true);
+    }
+  }
+
+  public synchronized void start()
+  {
+    if (running)
+      return;
+    running = true;
+    for (Thread thread : threads)
+      thread.start();
+  }
+
+  public void stop()
+  {
+    synchronized (this)
+    {
+      if (!running)
+        return;
+      running = false;
+    }
+    for (Thread thread : threads)
+    {
+      thread.interrupt();
+      // the handler may stop the transport from a dispatcher thread; never join ourselves
+      if (thread != Thread.currentThread())
+      {
+        try
+        {
+          thread.join(5000);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    for (BlockingQueue<AWSIotMessage> queue : queues)
+      queue.clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BlockingQueue<AWSIotMessage>[] newQueues(int count, int capacity)
+  {
+    BlockingQueue<AWSIotMessage>[] queues = new BlockingQueue[count];
+    for (int i = 0; i < count; i++)
+      queues[i] = new ArrayBlockingQueue<AWSIotMessage>(capacity);
+    return queues;
+  }
+
+  /**
+   * Queues a message for delivery, applying the overflow policy when the queue is full.
+   */
+  public void dispatch(AWSIotMessage message)
+  {
+    BlockingQueue<AWSIotMessage> queue = queueOf(message.getTopic());
+    switch (overflowPolicy)
+    {
+      case DROP_NEWEST:
+        if (!queue.offer(message))
+          dropped.incrementAndGet();
+        break;
+
+      case DROP_OLDEST:
+        while (!queue.offer(message))
+        {
+          if (queue.poll() != null)
+            dropped.incrementAndGet();
+        }
+        break;
+
+      default:
+        try
+        {
+          queue.put(message);
+        }
+        catch (InterruptedException e)
+        {
+          dropped.incrementAndGet();
+          Thread.currentThread().interrupt();
+        }
+        break;
+    }
+  }
+
+  public int getQueueDepth()
+  {
+    int depth = 0;
+    for (BlockingQueue<AWSIotMessage> queue : queues)
+      depth += queue.size();
+    return depth;
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  private BlockingQueue<AWSIotMessage> queueOf(String topic)
+  {
+    if (queues.length == 1 || topic == null)
+      return queues[0];
+    int hash = topic.hashCode();
+    return queues[((hash ^ (hash >>> 16)) & 0x7fffffff) % queues.length];
+  }
+
+  private void drain(BlockingQueue<AWSIotMessage> queue)
+  {
+    while (running)
+    {
+      try
+      {
+        AWSIotMessage message = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (message != null)
+          handler.handle(message);
+      }
+      catch (InterruptedException e)
+      {
+        // stop() interrupts the dispatcher threads; the loop condition decides whether to exit
+      }
+      catch (RuntimeException e)
+      {
+        LOGGER.error("UNEXPECTED_ERROR", e);
+      }
+    }
+  }
+}
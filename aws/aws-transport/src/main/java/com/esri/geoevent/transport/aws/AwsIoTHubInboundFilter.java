@@ -0,0 +1,381 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubInboundFilter class decides from the raw bytes of a message whether it is worth handing
+ * to the adapter. A filter is a list of predicates separated by <code>;</code>, all of which have
+ * to hold:
+ * <ul>
+ * <li><code>field</code> / <code>!field</code> - the field is present / absent</li>
+ * <li><code>field=value</code>, <code>field!=value</code> - equality</li>
+ * <li><code>field in [a,b,c]</code>, <code>field not in [a,b,c]</code> - set membership</li>
+ * <li><code>field&gt;n</code>, <code>&gt;=</code>, <code>&lt;</code>, <code>&lt;=</code> - numeric
+ * comparison, a range being two of them</li>
+ * </ul>
+ * Fields are dotted paths into a JSON record. Values are compared as written, strings without
+ * their quotes, and numerically when both sides are numbers. Predicates are evaluated in order with
+ * {@link AwsIoTHubJsonScanner} and stop at the first one that fails. Aggregated messages (records
+ * one per line, or a JSON array of them) are filtered record by record.
+ */
+public class AwsIoTHubInboundFilter
+{
+  private static final BundleLogger       LOGGER      = BundleLoggerFactory.getLogger(AwsIoTHubInboundFilter.class);
+
+  private static final Pattern            SET         = Pattern.compile("^(.+?)\\s+(not\\s+in|in)\\s*\\[(.*)\\]$");
+  private static final Pattern            COMPARISON  = Pattern.compile("^([^!=<>]+?)\\s*(!=|>=|<=|=|>|<)\\s*(.*)$");
+
+  private enum Operator
+  {
+    EXISTS, ABSENT, EQUALS, NOT_EQUALS, IN, NOT_IN, GREATER, GREATER_OR_EQUAL, LESS, LESS_OR_EQUAL
+  }
+
+  private static final class Predicate
+  {
+    final byte[][] path;
+    final Operator operator;
+    final byte[][] values;
+    final double[] numbers;
+
+    Predicate(String field, Operator operator, List<String> values)
+    {
+      this.path = AwsIoTHubJsonScanner.compilePath(field);
+      this.operator = operator;
+      this.values = new byte[values.size()][];
+      this.numbers = new double[values.size()];
+      for (int i = 0; i < values.size(); i++)
+      {
+        this.values[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+        this.numbers[i] = parseNumber(this.values[i], 0, this.values[i].length);
+      }
+    }
+  }
+
+  private final String                    expression;
+  private final Predicate[]               predicates;
+  private final ThreadLocal<int[]>        ranges      = ThreadLocal.withInitial(() -> new int[4]);
+
+  private AwsIoTHubInboundFilter(String expression, Predicate[] predicates)
+  {
+    this.expression = expression;
+    this.predicates = predicates;
+  }
+
+  /**
+   * @return the filter of an expression, or <code>null</code> if it is blank
+   * @throws IllegalArgumentException if a predicate cannot be read
+   */
+  public static AwsIoTHubInboundFilter parse(String expression)
+  {
+    if (expression == null || expression.trim().isEmpty())
+      return null;
+    List<Predicate> predicates = new ArrayList<Predicate>();
+    for (String term : expression.split(";"))
+    {
+      term = term.trim();
+      if (term.isEmpty())
+        continue;
+      Matcher set = SET.matcher(term);
+      Matcher comparison = COMPARISON.matcher(term);
+      if (set.matches())
+      {
+        List<String> values = new ArrayList<String>();
+        for (String value : set.group(3).split(","))
+          values.add(unquote(value));
+        Operator operator = set.group(2).startsWith("not") ? Operator.NOT_IN : Operator.IN;
+        predicates.add(new Predicate(field(set.group(1), term), operator, values));
+      }
+      else if (comparison.matches())
+      {
+        Operator operator = operator(comparison.group(2));
+        String value = unquote(comparison.group(3));
+        Predicate predicate = new Predicate(field(comparison.group(1), term), operator, Collections.singletonList(value));
+        if (operator.compareTo(Operator.GREATER) >= 0 && Double.isNaN(predicate.numbers[0]))
+          throw new IllegalArgumentException(LOGGER.translate("FILTER_INVALID", term));
+        predicates.add(predicate);
+      }
+      else if (term.startsWith("!"))
+      {
+        predicates.add(new Predicate(field(term.substring(1), term), Operator.ABSENT, new ArrayList<String>()));
+      }
+      else
+      {
+        predicates.add(new Predicate(field(term, term), Operator.EXISTS, new ArrayList<String>()));
+      }
+    }
+    return predicates.isEmpty() ? null : new AwsIoTHubInboundFilter(expression.trim(), predicates.toArray(new Predicate[0]));
+  }
+
+  /**
+   * Keeps the records of a message that satisfy every predicate, moving them down over the ones
+   * that do not, in place. Records of a JSON array stay in an array and newline separated records
+   * stay on lines of their own; a message that is not JSON is judged as a whole.
+   *
+   * @param metrics counts the records kept and discarded, may be <code>null</code>
+   * @return the length of the records kept, 0 if none is
+   */
+  public int filter(byte[] bytes, int offset, int length, AwsIoTHubMetrics metrics)
+  {
+    int end = offset + length;
+    int start = AwsIoTHubJsonScanner.skipWhitespace(bytes, offset, end);
+    if (start >= end || (bytes[start] != '{' && bytes[start] != '['))
+    {
+      boolean matched = matches(bytes, offset, length);
+      if (metrics != null)
+        metrics.filtered(matched);
+      return matched ? length : 0;
+    }
+
+    boolean array = bytes[start] == '[';
+    int write = offset;
+    if (array)
+      bytes[write++] = '[';
+    int read = array ? start + 1 : start;
+    int previousEnd = -1;
+    int kept = 0;
+    boolean closed = false;
+    while (true)
+    {
+      read = AwsIoTHubJsonScanner.skipWhitespace(bytes, read, end);
+      if (read >= end)
+        break;
+      if (array && bytes[read] == ']')
+      {
+        closed = true;
+        break;
+      }
+      // a truncated record or one that is not an object takes the rest of the message with it
+      int recordEnd = (bytes[read] == '{') ? AwsIoTHubJsonScanner.skipValue(bytes, read, end) : -1;
+      if (recordEnd < 0)
+        recordEnd = end;
+      boolean matched = matches(bytes, read, recordEnd - read);
+      if (metrics != null)
+        metrics.filtered(matched);
+      if (matched)
+      {
+        // records that were not separated stay that way, so the kept ones never outgrow the message
+        if (kept > 0 && read > previousEnd)
+          bytes[write++] = (byte) (array ? ',' : '\n');
+        System.arraycopy(bytes, read, bytes, write, recordEnd - read);
+        write += recordEnd - read;
+        kept++;
+      }
+      previousEnd = recordEnd;
+      read = AwsIoTHubJsonScanner.skipWhitespace(bytes, recordEnd, end);
+      if (array && read < end && bytes[read] == ',')
+        read++;
+    }
+    if (kept == 0)
+      return 0;
+    if (closed)
+      bytes[write++] = ']';
+    return write - offset;
+  }
+
+  /**
+   * @return <code>true</code> if the record satisfies every predicate
+   */
+  public boolean matches(byte[] bytes, int offset, int length)
+  {
+    int[] range = ranges.get();
+    int end = offset + length;
+    for (Predicate predicate : predicates)
+    {
+      boolean found = AwsIoTHubJsonScanner.findField(bytes, offset, end, predicate.path, range);
+      if (!evaluate(predicate, found, bytes, range))
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString()
+  {
+    return expression;
+  }
+
+  private static boolean evaluate(Predicate predicate, boolean found, byte[] bytes, int[] range)
+  {
+    switch (predicate.operator)
+    {
+      case EXISTS:
+        return found;
+      case ABSENT:
+        return !found;
+      case EQUALS:
+      case IN:
+        return found && indexOf(predicate, bytes, range) >= 0;
+      case NOT_EQUALS:
+      case NOT_IN:
+        return !found || indexOf(predicate, bytes, range) < 0;
+      default:
+        break;
+    }
+    if (!found)
+      return false;
+    double value = parseNumber(bytes, AwsIoTHubJsonScanner.contentStart(bytes, range), AwsIoTHubJsonScanner.contentEnd(bytes, range));
+    if (Double.isNaN(value))
+      return false;
+    double bound = predicate.numbers[0];
+    switch (predicate.operator)
+    {
+      case GREATER:
+        return value > bound;
+      case GREATER_OR_EQUAL:
+        return value >= bound;
+      case LESS:
+        return value < bound;
+      default:
+        return value <= bound;
+    }
+  }
+
+  /**
+   * @return the index of the predicate value the field value equals, or -1
+   */
+  private static int indexOf(Predicate predicate, byte[] bytes, int[] range)
+  {
+    int start = AwsIoTHubJsonScanner.contentStart(bytes, range);
+    int end = AwsIoTHubJsonScanner.contentEnd(bytes, range);
+    double number = Double.NaN;
+    boolean parsed = false;
+    for (int i = 0; i < predicate.values.length; i++)
+    {
+      if (AwsIoTHubJsonScanner.regionEquals(bytes, start, end, predicate.values[i]))
+        return i;
+      if (!Double.isNaN(predicate.numbers[i]))
+      {
+        // only parsed when a numeric value did not match as written, e.g. 1 against 1.0
+        if (!parsed)
+        {
+          number = parseNumber(bytes, start, end);
+          parsed = true;
+        }
+        if (number == predicate.numbers[i])
+          return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parses a JSON number without allocating.
+   *
+   * @return the number, or NaN if the range is not one
+   */
+  static double parseNumber(byte[] bytes, int start, int end)
+  {
+    int i = start;
+    boolean negative = i < end && bytes[i] == '-';
+    if (negative)
+      i++;
+    long mantissa = 0;
+    int exponent = 0;
+    int digits = 0;
+    for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++, digits++)
+    {
+      if (mantissa < 100000000000000000L)
+        mantissa = mantissa * 10 + (bytes[i] - '0');
+      else
+        exponent++;
+    }
+    if (i < end && bytes[i] == '.')
+    {
+      for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++, digits++)
+      {
+        if (mantissa < 100000000000000000L)
+        {
+          mantissa = mantissa * 10 + (bytes[i] - '0');
+          exponent--;
+        }
+      }
+    }
+    if (digits == 0)
+      return Double.NaN;
+    if (i < end && (bytes[i] == 'e' || bytes[i] == 'E'))
+    {
+      i++;
+      boolean negativeExponent = i < end && bytes[i] == '-';
+      if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+        i++;
+      int e = 0;
+      int exponentDigits = 0;
+      for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++, exponentDigits++)
+        e = Math.min(e * 10 + (bytes[i] - '0'), 1000);
+      if (exponentDigits == 0)
+        return Double.NaN;
+      exponent += negativeExponent ? -e : e;
+    }
+    if (i != end)
+      return Double.NaN;
+    double value = (exponent == 0) ? mantissa : (exponent > 0) ? mantissa * Math.pow(10, exponent) : mantissa / Math.pow(10, -exponent);
+    return negative ? -value : value;
+  }
+
+  private static Operator operator(String symbol)
+  {
+    switch (symbol)
+    {
+      case "=":
+        return Operator.EQUALS;
+      case "!=":
+        return Operator.NOT_EQUALS;
+      case ">":
+        return Operator.GREATER;
+      case ">=":
+        return Operator.GREATER_OR_EQUAL;
+      case "<":
+        return Operator.LESS;
+      default:
+        return Operator.LESS_OR_EQUAL;
+    }
+  }
+
+  private static String field(String field, String term)
+  {
+    field = field.trim();
+    if (field.isEmpty() || field.contains(" "))
+      throw new IllegalArgumentException(LOGGER.translate("FILTER_INVALID", term));
+    return field;
+  }
+
+  private static String unquote(String value)
+  {
+    value = value.trim();
+    if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+      return value.substring(1, value.length() - 1);
+    return value;
+  }
+}
@@ -24,15 +24,23 @@
 package com.esri.geoevent.transport.aws;
 
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.amazonaws.services.iot.client.AWSIotException;
 import com.amazonaws.services.iot.client.AWSIotMessage;
 import com.amazonaws.services.iot.client.AWSIotMqttClient;
 import com.amazonaws.services.iot.client.AWSIotQos;
 import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.esri.geoevent.transport.aws.AwsIoTHubInboundDispatcher.OverflowPolicy;
 import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
 import com.esri.ges.core.component.ComponentException;
 import com.esri.ges.core.component.RunningException;
@@ -41,6 +49,8 @@ import com.esri.ges.framework.i18n.BundleLogger;
 import com.esri.ges.framework.i18n.BundleLoggerFactory;
 import com.esri.ges.transport.InboundTransportBase;
 import com.esri.ges.transport.TransportDefinition;
+import com.esri.ges.util.Converter;
+import com.esri.ges.util.Validator;
 
 public class AwsIoTHubInboundTransport extends InboundTransportBase implements Runnable
 {	
@@ -60,15 +70,50 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
   private String					x509Certificate		   = "";
   private String 					privateKey			   = "";
   private String 					topicName			   = "";
+  private int                       dispatchQueueSize      = 10000;
+  private int                       dispatchThreads        = 1;
+  private String                    dispatchOverflowPolicy = OverflowPolicy.BLOCK.toString();
+  private boolean                   batchEnabled           = false;
+  private int                       batchMaxBytes          = 65536;
+  private int                       batchMaxRecords        = 1000;
+  private int                       batchLingerMillis      = 5;
+  private int                       shardCount             = 1;
+  private String                    sharedSubscriptionGroup = "";
+  private boolean                   clusterMode            = false;
+  private String                    messageFilter          = "";
+  private int                       diagnosticsSampleRate  = 0;
+  private int                       diagnosticsCaptureSize = 100;
+  private boolean                   traceEnabled           = false;
+  private int                       reconnectBaseDelay     = 1000;
+  private int                       reconnectMaxDelay      = 60000;
+  private String                    subscribeQos           = "QOS0";
+  private int                       duplicateWindow        = 60000;
+  private int                       duplicateCapacity      = 50000;
+  private boolean                   decompressPayloads     = false;
+  private int                       maxDecompressedSize    = 1048576;
   
   // data members
   private String					clientId			   = null;	
+  private String[]                  credentialFiles        = null;
   private AWSIotMqttClient 			awsClient			   = null;
+  private final List<AwsIoTHubMqttClient> awsClients     = new CopyOnWriteArrayList<AwsIoTHubMqttClient>();
   private AwsIoTHubDevice 			geIoTDevice			   = null;
-  private AWSIotTopic               iotTopic			   = null;	
+  // topic filters each shard has subscribed, so a failed attempt only subscribes what is missing
+  private final Map<AwsIoTHubMqttClient, Set<String>> subscriptions = new HashMap<AwsIoTHubMqttClient, Set<String>>();
+  private volatile AwsIoTHubInboundDispatcher dispatcher  = null;
+  private volatile AwsIoTHubInboundBatcher batcher       = null;
+  private volatile AwsIoTHubDiagnostics diagnostics      = null;
+  private volatile AwsIoTHubTracer  tracer              = null;
+  private volatile AwsIoTHubConnectionSupervisor supervisor = null;
+  private volatile AwsIoTHubDuplicateFilter duplicateFilter = null;
+  private volatile AwsIoTHubInboundFilter filter         = null;
+  private volatile AwsIoTHubCodecPool codecPool         = null;
   private String                    errorMessage;
   private Thread					thread				   = null;
   private volatile boolean          propertiesNeedUpdating = false;
+  private final AwsIoTHubBufferPool bufferPool          = new AwsIoTHubBufferPool(8);
+  private final AwsIoTHubInboundDelivery delivery      = new AwsIoTHubInboundDelivery(bufferPool);
+  private final AwsIoTHubMetrics    metrics             = new AwsIoTHubMetrics(AwsIoTHubInboundTransport.class.getSimpleName());
   
   public enum AwsIoTServiceType {
 	  IOT_TOPIC,
@@ -110,8 +155,6 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
   
   private void connectToAwsEventHub()
   {
-    String errorMessage = null;
-    RunningState runningState = RunningState.STARTED;
 
     try
     {
@@ -126,43 +169,84 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
       isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
       
       //Get KeyStore credentials       
-      KeyStorePasswordPair pair = AwsIoTHubUtil.getKeyStorePasswordPair(x509Certificate, privateKey, null);
+      KeyStorePasswordPair pair = loadCredentials();
       
-      //create AwsClient
-      clientId = String.format("%s-%s", deviceIdFieldName, new BigInteger(128, new SecureRandom()).toString(32));
-      awsClient = new AWSIotMqttClient(clientEndpoint, clientId, pair.keyStore, pair.keyPassword);      
+      //create AwsClient, one per shard; shard client ids are derived from the same base client id
+      //in cluster mode the node name goes into the client id, so the connections of a site can be told apart
+      String nodeName = (clusterMode && isEventHubType) ? nodeName() + "-" : "";
+      clientId = String.format("%s-%s%s", deviceIdFieldName, nodeName, new BigInteger(128, new SecureRandom()).toString(32));
+      int shards = Math.max(1, shardCount);
+      for (int i = 0; i < shards; i++)
+      {
+        String shardClientId = (shards > 1) ? clientId + "-" + i : clientId;
+        AwsIoTHubMqttClient shard = createClient(shardClientId, pair);
+        shard.setMetrics(metrics);
+        awsClients.add(shard);
+      }
+      awsClient = awsClients.get(0);
       if (awsClient == null)
       {
-        runningState = RunningState.ERROR;
-        errorMessage = LOGGER.translate("FAILED_TO_CREATE_EH_CLIENT", clientEndpoint);
+        String errorMessage = LOGGER.translate("FAILED_TO_CREATE_EH_CLIENT", clientEndpoint);
         LOGGER.error(errorMessage);
+        setErrorMessage(errorMessage);
+        setRunningState(RunningState.ERROR);
+        return;
       }        
       
       //attach device
       if (!isEventHubType)
       {         	
-    	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " +": Attaching device:" + geIoTDevice.getThingName());
     	geIoTDevice = new AwsIoTHubDevice(deviceIdFieldName);
+    	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Attaching device:" + geIoTDevice.getThingName());
     	awsClient.attach(geIoTDevice);    	      
       }      
       
-      //connect
-      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId +": Connecting"); 
-      awsClient.connect();
-      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId +": Connected");      
-      
       //delete existing shawdow if any
       /*if(geIoTDevice != null){
     	  geIoTDevice.delete(10000);
       }*/
       
-      //register topic handler
-	  iotTopic = new AwsIoTTopicListener(topicName, AWSIotQos.QOS0);
-      awsClient.subscribe(iotTopic, true);  
-      LOGGER.info("Subscribed to topic:" + topicName); 
+      //payloads are only looked at when an operator samples them
+      diagnostics = new AwsIoTHubDiagnostics(AwsIoTHubInboundTransport.class.getSimpleName(), diagnosticsSampleRate, diagnosticsCaptureSize);
+      tracer = traceEnabled ? new AwsIoTHubTracer(AwsIoTHubInboundTransport.class.getSimpleName(), clientId, 1000) : null;
+
+      //QoS1 redeliveries are dropped before they reach the adapter
+      boolean qos1 = AwsIoTHubMqttClient.parseQos(subscribeQos) == AWSIotQos.QOS1;
+      duplicateFilter = (qos1 && duplicateWindow > 0) ? new AwsIoTHubDuplicateFilter(duplicateWindow, duplicateCapacity) : null;
+
+      //messages nobody needs are discarded before the adapter parses them
+      filter = AwsIoTHubInboundFilter.parse(messageFilter);
+
+      //compressed payloads are inflated by codecs that are ended again when the transport stops
+      codecPool = decompressPayloads ? new AwsIoTHubCodecPool(8) : null;
+
+      //coalesce records into larger buffers for the adapter
+      if (batchEnabled)
+      {
+        batcher = new AwsIoTHubInboundBatcher(clientId, bufferPool, byteListener, batchMaxBytes, batchMaxRecords, batchLingerMillis);
+        batcher.start();
+      }
+      
+      //hand messages off to the dispatcher threads unless delivery on the callback thread is asked for
+      if (dispatchQueueSize > 0)
+      {
+        dispatcher = new AwsIoTHubInboundDispatcher(clientId, dispatchQueueSize, dispatchThreads, parseOverflowPolicy(dispatchOverflowPolicy), message -> receive(message.getTopic(), message.getPayload()));
+        dispatcher.start();
+      }
+      metrics.setQueueDepth(this::getQueueDepth);
       
-      setErrorMessage(errorMessage);
-      setRunningState(runningState);
+      metrics.register(clientId);
+      diagnostics.register(clientId);
+      if (tracer != null)
+        tracer.register(clientId);
+
+      //connect and subscribe off this thread; the supervisor retries with backoff until the broker is
+      //reachable and reconnects whenever the connection is closed
+      AwsIoTHubConnectionSupervisor newSupervisor = new AwsIoTHubConnectionSupervisor(clientId, this::connectShards, this::isConnected, this::connectionStateChanged, reconnectBaseDelay, reconnectMaxDelay);
+      for (AwsIoTHubMqttClient shard : awsClients)
+        shard.setConnectionListener(newSupervisor);
+      supervisor = newSupervisor;
+      newSupervisor.start();
     }
     catch (AWSIotException iote)
     {
@@ -178,6 +262,150 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
     }
   }
 
+  /**
+   * Loads the certificate and private key the connections authenticate with, sharing the parsed
+   * key store with every other transport using the same files.
+   */
+  protected KeyStorePasswordPair loadCredentials()
+  {
+    releaseCredentials();
+    credentialFiles = new String[] { x509Certificate, privateKey };
+    return AwsIoTHubCredentialCache.get(x509Certificate, privateKey);
+  }
+
+  /**
+   * Gives back the key store taken by {@link #loadCredentials()}, so the cache can drop it once no
+   * transport uses the files any more.
+   */
+  protected void releaseCredentials()
+  {
+    String[] files = credentialFiles;
+    credentialFiles = null;
+    if (files != null)
+      AwsIoTHubCredentialCache.release(files[0], files[1]);
+  }
+
+  /**
+   * Creates the MQTT client of one connection. Benchmarks and tests override this to run the
+   * transport without a broker.
+   */
+  protected AwsIoTHubMqttClient createClient(String connectionClientId, KeyStorePasswordPair pair)
+  {
+    return new AwsIoTHubMqttClient(clientEndpoint, connectionClientId, pair.keyStore, pair.keyPassword);
+  }
+
+  /**
+   * Connects the shards that are not connected and subscribes every topic filter a shard has not
+   * subscribed yet. The subscriptions are kept by the clients, which restore them on every later
+   * reconnect.
+   */
+  private synchronized void connectShards() throws AWSIotException
+  {
+    for (AwsIoTHubMqttClient shard : awsClients)
+    {
+      if (!shard.isConnected())
+      {
+        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + shard.getClientId() +": Connecting"); 
+        shard.connect();
+        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + shard.getClientId() +": Connected");      
+      }
+    }
+    //register a topic handler for each topic or topic filter. With a shared subscription group every
+    //shard subscribes to every topic and the broker spreads the messages, otherwise the topics are
+    //spread round-robin across the shards
+    List<String> topicFilters = parseTopics(topicName);
+    String group = sharedSubscriptionGroup();
+    boolean shared = Validator.isNotBlank(group);
+    for (int i = 0; i < topicFilters.size(); i++)
+    {
+      for (int s = 0; s < awsClients.size(); s++)
+      {
+        if (shared)
+          subscribe(awsClients.get(s), AwsIoTHubMqttClient.sharedSubscription(group, topicFilters.get(i)));
+        else if (i % awsClients.size() == s)
+          subscribe(awsClients.get(s), topicFilters.get(i));
+      }
+    }
+  }
+
+  /**
+   * @return the shared subscription group, which in cluster mode defaults to the device id so the
+   *         nodes of a site share the topics without further configuration
+   */
+  private String sharedSubscriptionGroup()
+  {
+    if (Validator.isNotBlank(sharedSubscriptionGroup))
+      return sharedSubscriptionGroup.trim();
+    if (clusterMode && Validator.isNotBlank(deviceIdFieldName))
+      return deviceIdFieldName.trim().replaceAll("[^A-Za-z0-9_-]", "_");
+    return "";
+  }
+
+  /**
+   * @return the host name of this node, reduced to the characters allowed in a client id
+   */
+  private static String nodeName()
+  {
+    String name;
+    try
+    {
+      name = InetAddress.getLocalHost().getHostName();
+    }
+    catch (Exception e)
+    {
+      name = "node";
+    }
+    int dot = name.indexOf('.');
+    if (dot > 0)
+      name = name.substring(0, dot);
+    name = name.replaceAll("[^A-Za-z0-9_-]", "_");
+    return (name.length() > 32) ? name.substring(0, 32) : name;
+  }
+
+  private boolean isConnected()
+  {
+    for (AwsIoTHubMqttClient shard : awsClients)
+    {
+      if (!shard.isConnected())
+        return false;
+    }
+    return !awsClients.isEmpty();
+  }
+
+  private void connectionStateChanged(AwsIoTHubConnectionSupervisor.State state, String detail)
+  {
+    switch (state)
+    {
+      case CONNECTED:
+        setErrorMessage(null);
+        setRunningState(RunningState.STARTED);
+        break;
+      case CONNECTING:
+      case RECONNECTING:
+        setErrorMessage(detail);
+        setRunningState(RunningState.STARTING);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void subscribe(AwsIoTHubMqttClient shard, String topicFilter) throws AWSIotException
+  {
+    Set<String> subscribed = subscriptions.get(shard);
+    if (subscribed == null)
+    {
+      subscribed = new HashSet<String>();
+      subscriptions.put(shard, subscribed);
+    }
+    if (subscribed.contains(topicFilter))
+      return;
+    AWSIotTopic iotTopic = new AwsIoTTopicListener(shard, topicFilter, AwsIoTHubMqttClient.parseQos(subscribeQos));
+    shard.subscribe(iotTopic, true);
+    subscribed.add(topicFilter);
+    LOGGER.info("Subscribed to topic:" + topicFilter + " on " + shard.getClientId());
+  }
+
   @Override
   public synchronized void stop()
   {   
@@ -189,6 +417,18 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
 
   private void cleanup()
   {     
+      AwsIoTHubConnectionSupervisor currentSupervisor = supervisor;
+      supervisor = null;
+      if (currentSupervisor != null)
+        currentSupervisor.stop();
+      metrics.unregister();
+      AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+      if (currentDiagnostics != null)
+        currentDiagnostics.unregister();
+      AwsIoTHubTracer currentTracer = tracer;
+      tracer = null;
+      if (currentTracer != null)
+        currentTracer.unregister();
       if (awsClient != null)
       {
         try
@@ -199,9 +439,6 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
         		LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Detached device:" + geIoTDevice.getThingName());        		
         		//geIoTDevice.delete(5000);
         	}        	
-        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Disconnecting");
-        	awsClient.disconnect(5000);             	
-        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Disconnected");
         }
         catch (Exception e)
         {
@@ -212,6 +449,40 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
 	        awsClient = null;        
         } 
       }    
+      for (AwsIoTHubMqttClient shard : awsClients)
+      {
+        try
+        {
+        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + shard.getClientId() + ": Disconnecting");
+        	shard.disconnect(5000);             	
+        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + shard.getClientId() + ": Disconnected");
+        }
+        catch (Exception e)
+        {
+          LOGGER.error("CLEANUP_ERROR",e);                       
+  		  setErrorMessage(e.getMessage());
+        }
+      }
+      awsClients.clear();
+      synchronized (this)
+      {
+        subscriptions.clear();
+      }
+      if (dispatcher != null)
+      {
+        dispatcher.stop();
+        dispatcher = null;
+      }
+      if (batcher != null)
+      {
+        batcher.stop();
+        batcher = null;
+      }
+      // kept so a message still arriving gets a codec that is ended after use
+      AwsIoTHubCodecPool currentCodecPool = codecPool;
+      if (currentCodecPool != null)
+        currentCodecPool.close();
+      releaseCredentials();
   }
   
 
@@ -280,30 +551,302 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
          somethingChanged = true;
         }
       }            
+      //dispatch queue size
+      if (hasProperty("dispatchQueueSize"))
+      {
+        int newDispatchQueueSize = Converter.convertToInteger(getProperty("dispatchQueueSize").getValueAsString(), 10000);
+        if (dispatchQueueSize != newDispatchQueueSize)
+        {
+          dispatchQueueSize = newDispatchQueueSize;
+          somethingChanged = true;
+        }
+      }
+      //dispatch threads
+      if (hasProperty("dispatchThreads"))
+      {
+        int newDispatchThreads = Converter.convertToInteger(getProperty("dispatchThreads").getValueAsString(), 1);
+        if (dispatchThreads != newDispatchThreads)
+        {
+          dispatchThreads = newDispatchThreads;
+          somethingChanged = true;
+        }
+      }
+      //dispatch overflow policy
+      if (hasProperty("dispatchOverflowPolicy"))
+      {
+        String newDispatchOverflowPolicy = getProperty("dispatchOverflowPolicy").getValueAsString();
+        if (!dispatchOverflowPolicy.equals(newDispatchOverflowPolicy))
+        {
+          dispatchOverflowPolicy = newDispatchOverflowPolicy;
+          somethingChanged = true;
+        }
+      }
+      //inbound batching
+      if (hasProperty("batchEnabled"))
+      {
+        boolean newBatchEnabled = Converter.convertToBoolean(getProperty("batchEnabled").getValueAsString(), false);
+        if (batchEnabled != newBatchEnabled)
+        {
+          batchEnabled = newBatchEnabled;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("batchMaxBytes"))
+      {
+        int newBatchMaxBytes = Converter.convertToInteger(getProperty("batchMaxBytes").getValueAsString(), 65536);
+        if (batchMaxBytes != newBatchMaxBytes)
+        {
+          batchMaxBytes = newBatchMaxBytes;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("batchMaxRecords"))
+      {
+        int newBatchMaxRecords = Converter.convertToInteger(getProperty("batchMaxRecords").getValueAsString(), 1000);
+        if (batchMaxRecords != newBatchMaxRecords)
+        {
+          batchMaxRecords = newBatchMaxRecords;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("batchLingerMillis"))
+      {
+        int newBatchLingerMillis = Converter.convertToInteger(getProperty("batchLingerMillis").getValueAsString(), 5);
+        if (batchLingerMillis != newBatchLingerMillis)
+        {
+          batchLingerMillis = newBatchLingerMillis;
+          somethingChanged = true;
+        }
+      }
+      //number of connections sharing the subscriptions
+      if (hasProperty("shardCount"))
+      {
+        int newShardCount = Converter.convertToInteger(getProperty("shardCount").getValueAsString(), 1);
+        if (shardCount != newShardCount)
+        {
+          shardCount = newShardCount;
+          somethingChanged = true;
+        }
+      }
+      //shared subscription group
+      if (hasProperty("sharedSubscriptionGroup"))
+      {
+        String newSharedSubscriptionGroup = getProperty("sharedSubscriptionGroup").getValueAsString();
+        if (newSharedSubscriptionGroup == null)
+          newSharedSubscriptionGroup = "";
+        if (!sharedSubscriptionGroup.equals(newSharedSubscriptionGroup))
+        {
+          sharedSubscriptionGroup = newSharedSubscriptionGroup;
+          somethingChanged = true;
+        }
+      }
+      //sampled payload capture
+      if (hasProperty("diagnosticsSampleRate"))
+      {
+        int newDiagnosticsSampleRate = Converter.convertToInteger(getProperty("diagnosticsSampleRate").getValueAsString(), 0);
+        if (diagnosticsSampleRate != newDiagnosticsSampleRate)
+        {
+          diagnosticsSampleRate = newDiagnosticsSampleRate;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("diagnosticsCaptureSize"))
+      {
+        int newDiagnosticsCaptureSize = Converter.convertToInteger(getProperty("diagnosticsCaptureSize").getValueAsString(), 100);
+        if (diagnosticsCaptureSize != newDiagnosticsCaptureSize)
+        {
+          diagnosticsCaptureSize = newDiagnosticsCaptureSize;
+          somethingChanged = true;
+        }
+      }
+      //end-to-end tracing
+      if (hasProperty("traceEnabled"))
+      {
+        boolean newTraceEnabled = Converter.convertToBoolean(getProperty("traceEnabled").getValueAsString(), false);
+        if (traceEnabled != newTraceEnabled)
+        {
+          traceEnabled = newTraceEnabled;
+          somethingChanged = true;
+        }
+      }
+      //delay before the first reconnect attempt, doubled on each further failure
+      if (hasProperty("reconnectBaseDelay"))
+      {
+        int newReconnectBaseDelay = Converter.convertToInteger(getProperty("reconnectBaseDelay").getValueAsString(), 1000);
+        if (reconnectBaseDelay != newReconnectBaseDelay)
+        {
+          reconnectBaseDelay = newReconnectBaseDelay;
+          somethingChanged = true;
+        }
+      }
+      //upper bound of the reconnect delay
+      if (hasProperty("reconnectMaxDelay"))
+      {
+        int newReconnectMaxDelay = Converter.convertToInteger(getProperty("reconnectMaxDelay").getValueAsString(), 60000);
+        if (reconnectMaxDelay != newReconnectMaxDelay)
+        {
+          reconnectMaxDelay = newReconnectMaxDelay;
+          somethingChanged = true;
+        }
+      }
+      //QoS of the subscriptions
+      if (hasProperty("subscribeQos"))
+      {
+        String newSubscribeQos = getProperty("subscribeQos").getValueAsString();
+        if (newSubscribeQos == null)
+          newSubscribeQos = "";
+        if (!subscribeQos.equals(newSubscribeQos))
+        {
+          subscribeQos = newSubscribeQos;
+          somethingChanged = true;
+        }
+      }
+      //how long QoS1 messages are remembered to drop repeats
+      if (hasProperty("duplicateWindow"))
+      {
+        int newDuplicateWindow = Converter.convertToInteger(getProperty("duplicateWindow").getValueAsString(), 60000);
+        if (duplicateWindow != newDuplicateWindow)
+        {
+          duplicateWindow = newDuplicateWindow;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("duplicateCapacity"))
+      {
+        int newDuplicateCapacity = Converter.convertToInteger(getProperty("duplicateCapacity").getValueAsString(), 50000);
+        if (duplicateCapacity != newDuplicateCapacity)
+        {
+          duplicateCapacity = newDuplicateCapacity;
+          somethingChanged = true;
+        }
+      }
+      //every node of the site ingests a share of the topics
+      if (hasProperty("clusterMode"))
+      {
+        boolean newClusterMode = Converter.convertToBoolean(getProperty("clusterMode").getValueAsString(), false);
+        if (clusterMode != newClusterMode)
+        {
+          clusterMode = newClusterMode;
+          somethingChanged = true;
+        }
+      }
+      //predicates a message has to satisfy to reach the adapter
+      if (hasProperty("messageFilter"))
+      {
+        String newMessageFilter = getProperty("messageFilter").getValueAsString();
+        if (newMessageFilter == null)
+          newMessageFilter = "";
+        if (!messageFilter.equals(newMessageFilter))
+        {
+          messageFilter = newMessageFilter;
+          somethingChanged = true;
+        }
+      }
+      //inflate gzip and zlib payloads
+      if (hasProperty("decompressPayloads"))
+      {
+        boolean newDecompressPayloads = Converter.convertToBoolean(getProperty("decompressPayloads").getValueAsString(), false);
+        if (decompressPayloads != newDecompressPayloads)
+        {
+          decompressPayloads = newDecompressPayloads;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("maxDecompressedSize"))
+      {
+        int newMaxDecompressedSize = Converter.convertToInteger(getProperty("maxDecompressedSize").getValueAsString(), 1048576);
+        if (maxDecompressedSize != newMaxDecompressedSize)
+        {
+          maxDecompressedSize = newMaxDecompressedSize;
+          somethingChanged = true;
+        }
+      }
       
       propertiesNeedUpdating = somethingChanged;   
   }
+
+  /**
+   * Splits the topic property into its topics and MQTT topic filters ('+' and '#' wildcards are
+   * passed through to the broker as they are).
+   */
+  private static List<String> parseTopics(String value)
+  {
+    List<String> topics = new ArrayList<String>();
+    for (String topic : value.split(","))
+    {
+      topic = topic.trim();
+      if (!topic.isEmpty() && !topics.contains(topic))
+        topics.add(topic);
+    }
+    return topics;
+  }
+
+  private static OverflowPolicy parseOverflowPolicy(String value)
+  {
+    try
+    {
+      return OverflowPolicy.valueOf(value.trim().toUpperCase());
+    }
+    catch (Exception e)
+    {
+      return OverflowPolicy.BLOCK;
+    }
+  }
   
-  private void receive(byte[] bytes)
+  /**
+   * @param channelId the topic the message was published to, which for a wildcard subscription is
+   *          the matched topic rather than the topic filter
+   */
+  private void receive(String channelId, byte[] bytes)
   {
     if (bytes != null && bytes.length > 0)
     {
-      String str = new String(bytes);
-      str = str + '\n';
-      byte[] newBytes = str.getBytes();
-
-      ByteBuffer bb = ByteBuffer.allocate(newBytes.length);
+      AwsIoTHubCodecPool currentCodecPool = codecPool;
+      AwsIoTHubCodec codec = null;
       try
       {
-        bb.put(newBytes);
-        bb.flip();
-        byteListener.receive(bb, "");
-        bb.clear();
+        long startNanos = System.nanoTime();
+        int received = bytes.length;
+        // compressed payloads are recognized by their header and inflated into a reused buffer
+        int length = bytes.length;
+        if (decompressPayloads && currentCodecPool != null)
+        {
+          codec = currentCodecPool.acquire();
+          int decompressedLength = codec.decompress(bytes, 0, length, maxDecompressedSize);
+          if (decompressedLength == AwsIoTHubCodec.TOO_LARGE)
+          {
+            LOGGER.warn("DECOMPRESSED_TOO_LARGE", channelId, maxDecompressedSize);
+            return;
+          }
+          if (decompressedLength >= 0)
+          {
+            bytes = codec.getBuffer();
+            length = decompressedLength;
+          }
+        }
+        // trace stamps are taken out before the adapter sees the records
+        AwsIoTHubTracer currentTracer = tracer;
+        if (currentTracer != null)
+          length = currentTracer.strip(channelId, bytes, 0, length);
+
+        // records nobody needs are taken out, in place, and a message left empty is not delivered
+        AwsIoTHubInboundFilter currentFilter = filter;
+        if (currentFilter != null)
+          length = currentFilter.filter(bytes, 0, length, metrics);
+
+        if (length > 0)
+        {
+          AwsIoTHubInboundBatcher currentBatcher = batcher;
+          if (currentBatcher != null)
+            currentBatcher.add(bytes, 0, length, channelId);
+          else
+            delivery.deliver(byteListener, bytes, 0, length, channelId);
+        }
+        metrics.received(received, System.nanoTime() - startNanos);
       }
       catch (BufferOverflowException boe)
       {
         LOGGER.error("BUFFER_OVERFLOW_ERROR", boe);
-        bb.clear();
         setRunningState(RunningState.ERROR);
       }
       catch (Exception e)
@@ -312,6 +855,12 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
         stop();
         setRunningState(RunningState.ERROR);
       }
+      finally
+      {
+        // the decompressed bytes are the codec's buffer, so it goes back only after delivery
+        if (codec != null)
+          currentCodecPool.release(codec);
+      }
     }
   }
 
@@ -322,14 +871,41 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
    */
   public final class AwsIoTTopicListener extends AWSIotTopic {
 
+      private final AwsIoTHubMqttClient shard;
+
       public AwsIoTTopicListener(String topic, AWSIotQos qos) {
+          this(null, topic, qos);
+      }
+
+      public AwsIoTTopicListener(AwsIoTHubMqttClient shard, String topic, AWSIotQos qos) {
           super(topic, qos);
+          this.shard = shard;
       }
 
       @Override
       public void onMessage(AWSIotMessage message) {          
-          LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": subscribe success for: " + this.topic + " >>> " + message.getStringPayload());
-          receive(message.getPayload());  
+          AwsIoTHubDuplicateFilter currentFilter = duplicateFilter;
+          if (currentFilter != null)
+          {
+            byte[] payload = message.getPayload();
+            if (payload != null && currentFilter.isDuplicate(message.getTopic(), payload, 0, payload.length))
+              return;
+          }
+          AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+          if (currentDiagnostics != null)
+          {
+            byte[] payload = message.getPayload();
+            currentDiagnostics.capture("in", message.getTopic(), payload, 0, payload.length);
+            if (LOGGER.isDebugEnabled() && currentDiagnostics.allowLog())
+              LOGGER.debug("MESSAGE_RECEIVED", message.getTopic(), payload.length);
+          }
+          if (shard != null)
+            shard.messageReceived();
+          AwsIoTHubInboundDispatcher currentDispatcher = dispatcher;
+          if (currentDispatcher != null)
+            currentDispatcher.dispatch(message);
+          else
+            receive(message.getTopic(), message.getPayload());  
       }
   }
     
@@ -363,13 +939,83 @@ public class AwsIoTHubInboundTransport extends InboundTransportBase implements R
   @Override
   public String getStatusDetails()
   {
-    return errorMessage;
+    if (errorMessage != null)
+      return errorMessage;
+
+    StringBuilder details = new StringBuilder();
+    AwsIoTHubConnectionSupervisor currentSupervisor = supervisor;
+    String connectionStatus = (currentSupervisor != null) ? currentSupervisor.getStatus() : null;
+    if (connectionStatus != null)
+      details.append(connectionStatus).append(' ');
+    AwsIoTHubInboundDispatcher currentDispatcher = dispatcher;
+    if (currentDispatcher != null)
+      details.append(LOGGER.translate("DISPATCH_QUEUE_STATUS", currentDispatcher.getQueueDepth(), currentDispatcher.getCapacity(), currentDispatcher.getDroppedCount()));
+    // per shard health, only worth reporting when there is more than one connection
+    AwsIoTHubMqttClient[] shards = awsClients.toArray(new AwsIoTHubMqttClient[0]);
+    if (shards.length > 1)
+    {
+      for (AwsIoTHubMqttClient shard : shards)
+      {
+        if (details.length() > 0)
+          details.append(' ');
+        details.append(LOGGER.translate("SHARD_STATUS", shard.getClientId(), shard.getConnectionStatus(), shard.getMessagesReceived(), shard.getConnectionFailures()));
+      }
+    }
+    AwsIoTHubDuplicateFilter currentFilter = duplicateFilter;
+    if (currentFilter != null)
+    {
+      if (details.length() > 0)
+        details.append(' ');
+      details.append(LOGGER.translate("DUPLICATE_FILTER_STATUS", currentFilter.getDuplicateCount(), currentFilter.getCheckedCount()));
+    }
+    if (filter != null)
+    {
+      if (details.length() > 0)
+        details.append(' ');
+      details.append(LOGGER.translate("FILTER_STATUS", metrics.getFilterMatched(), metrics.getFilterDiscarded()));
+    }
+    if (details.length() > 0)
+      details.append(' ');
+    details.append(metrics.getInboundSummary());
+    AwsIoTHubTracer currentTracer = tracer;
+    if (currentTracer != null)
+      details.append(' ').append(currentTracer.getSummary());
+    return details.toString();
+  }
+
+  /**
+   * @return the traffic counters of this transport, also registered as a JMX MBean while connected
+   */
+  public AwsIoTHubMetricsMBean getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * @return the sampled payload capture of this transport, or <code>null</code> before it connects
+   */
+  public AwsIoTHubDiagnosticsMBean getDiagnostics()
+  {
+    return diagnostics;
+  }
+
+  /**
+   * @return the number of messages waiting for a dispatcher thread, or 0 when messages are
+   *         delivered on the MQTT callback thread
+   */
+  public int getQueueDepth()
+  {
+    AwsIoTHubInboundDispatcher currentDispatcher = dispatcher;
+    return currentDispatcher != null ? currentDispatcher.getQueueDepth() : 0;
   }
 
   @Override
   public boolean isClusterable()
   {
-    return false;
+    // asked before the properties are applied, so they are read here; a device shadow has one subscriber
+    boolean clustered = hasProperty("clusterMode") && Converter.convertToBoolean(getProperty("clusterMode").getValueAsString(), false);
+    String serviceType = hasProperty("iotservicetype") ? getProperty("iotservicetype").getValueAsString() : iotServiceType;
+    return clustered && AwsIoTServiceType.IOT_TOPIC.toString().equals(serviceType);
   }
 
 }
\ No newline at end of file
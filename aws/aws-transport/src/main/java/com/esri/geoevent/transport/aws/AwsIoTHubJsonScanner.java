@@ -0,0 +1,264 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * AwsIoTHubJsonScanner class locates fields of a JSON object directly in its UTF-8 bytes, without
+ * decoding the payload or building a document. It only skips over the parts of the document it
+ * does not need, so finding a field costs one pass over the bytes before it and no allocation.
+ * <p>
+ * Field ranges are returned in an <code>int[4]</code> indexed by {@link #NAME_START},
+ * {@link #NAME_END}, {@link #VALUE_START} and {@link #VALUE_END} (end offsets are exclusive). The
+ * name range excludes the quotes, the value range is the raw JSON value including the quotes of a
+ * string.
+ */
+public final class AwsIoTHubJsonScanner
+{
+  public static final int NAME_START  = 0;
+  public static final int NAME_END    = 1;
+  public static final int VALUE_START = 2;
+  public static final int VALUE_END   = 3;
+
+  private AwsIoTHubJsonScanner()
+  {
+  }
+
+  /**
+   * Compiles a field name, or a dotted path of field names into nested objects (for example
+   * <code>"position.speed"</code>), to the UTF-8 byte form used by {@link #findField}.
+   */
+  public static byte[][] compilePath(String path)
+  {
+    String[] names = path.trim().split("\\.");
+    byte[][] compiled = new byte[names.length][];
+    for (int i = 0; i < names.length; i++)
+      compiled[i] = names[i].trim().getBytes(StandardCharsets.UTF_8);
+    return compiled;
+  }
+
+  /**
+   * Finds a field by path in the JSON object that starts at <code>offset</code>.
+   *
+   * @return <code>true</code> if the field was found, in which case <code>range</code> holds its
+   *         name and value offsets
+   */
+  public static boolean findField(byte[] bytes, int offset, int end, byte[][] path, int[] range)
+  {
+    int position = enterObject(bytes, offset, end);
+    for (int p = 0; p < path.length; p++)
+    {
+      boolean found = false;
+      while (position >= 0 && (position = nextMember(bytes, position, end, range)) >= 0)
+      {
+        if (nameEquals(bytes, range, path[p]))
+        {
+          found = true;
+          break;
+        }
+      }
+      if (!found)
+        return false;
+      if (p < path.length - 1)
+      {
+        end = range[VALUE_END];
+        position = enterObject(bytes, range[VALUE_START], end);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Positions the scanner inside the object starting at or after <code>offset</code>.
+   *
+   * @return the position right after the opening brace, or -1 if there is no object
+   */
+  public static int enterObject(byte[] bytes, int offset, int end)
+  {
+    int i = skipWhitespace(bytes, offset, end);
+    return (i < end && bytes[i] == '{') ? i + 1 : -1;
+  }
+
+  /**
+   * Reads the next member of an object.
+   *
+   * @param position the position returned by {@link #enterObject} or by the previous call
+   * @return the position after the member, or -1 when there are no more members
+   */
+  public static int nextMember(byte[] bytes, int position, int end, int[] range)
+  {
+    int i = skipWhitespace(bytes, position, end);
+    if (i < end && bytes[i] == ',')
+      i = skipWhitespace(bytes, i + 1, end);
+    if (i >= end || bytes[i] != '"')
+      return -1;
+
+    int nameEnd = skipString(bytes, i, end);
+    if (nameEnd < 0)
+      return -1;
+    range[NAME_START] = i + 1;
+    range[NAME_END] = nameEnd - 1;
+
+    i = skipWhitespace(bytes, nameEnd, end);
+    if (i >= end || bytes[i] != ':')
+      return -1;
+    i = skipWhitespace(bytes, i + 1, end);
+
+    int valueEnd = skipValue(bytes, i, end);
+    if (valueEnd < 0)
+      return -1;
+    range[VALUE_START] = i;
+    range[VALUE_END] = valueEnd;
+    return valueEnd;
+  }
+
+  /**
+   * @return the position after the JSON value starting at <code>i</code>, or -1 if it is truncated
+   */
+  public static int skipValue(byte[] bytes, int i, int end)
+  {
+    if (i >= end)
+      return -1;
+
+    byte b = bytes[i];
+    if (b == '"')
+      return skipString(bytes, i, end);
+
+    if (b == '{' || b == '[')
+    {
+      int depth = 0;
+      while (i < end)
+      {
+        b = bytes[i];
+        if (b == '"')
+        {
+          i = skipString(bytes, i, end);
+          if (i < 0)
+            return -1;
+          continue;
+        }
+        if (b == '{' || b == '[')
+          depth++;
+        else if ((b == '}' || b == ']') && --depth == 0)
+          return i + 1;
+        i++;
+      }
+      return -1;
+    }
+
+    // number, true, false or null
+    int start = i;
+    while (i < end && b != ',' && b != '}' && b != ']' && !isWhitespace(b))
+    {
+      i++;
+      if (i < end)
+        b = bytes[i];
+    }
+    return i > start ? i : -1;
+  }
+
+  /**
+   * @return the position after the closing quote of the string starting at <code>i</code>, or -1
+   *         if it is not terminated
+   */
+  public static int skipString(byte[] bytes, int i, int end)
+  {
+    for (i++; i < end; i++)
+    {
+      byte b = bytes[i];
+      if (b == '\\')
+        i++;
+      else if (b == '"')
+        return i + 1;
+    }
+    return -1;
+  }
+
+  public static int skipWhitespace(byte[] bytes, int i, int end)
+  {
+    while (i < end && isWhitespace(bytes[i]))
+      i++;
+    return i;
+  }
+
+  public static boolean isString(byte[] bytes, int[] range)
+  {
+    return bytes[range[VALUE_START]] == '"';
+  }
+
+  /**
+   * @return the start of the value without its opening quote if it is a string
+   */
+  public static int contentStart(byte[] bytes, int[] range)
+  {
+    return isString(bytes, range) ? range[VALUE_START] + 1 : range[VALUE_START];
+  }
+
+  /**
+   * @return the end of the value without its closing quote if it is a string
+   */
+  public static int contentEnd(byte[] bytes, int[] range)
+  {
+    return isString(bytes, range) ? range[VALUE_END] - 1 : range[VALUE_END];
+  }
+
+  public static boolean nameEquals(byte[] bytes, int[] range, byte[] name)
+  {
+    return regionEquals(bytes, range[NAME_START], range[NAME_END], name);
+  }
+
+  public static boolean regionEquals(byte[] bytes, int start, int end, byte[] other)
+  {
+    if (end - start != other.length)
+      return false;
+    for (int i = 0; i < other.length; i++)
+    {
+      if (bytes[start + i] != other[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * 32-bit FNV-1a hash of a byte range, used to partition and cache on field values without
+   * turning them into strings.
+   */
+  public static int hash(byte[] bytes, int start, int end)
+  {
+    int hash = 0x811c9dc5;
+    for (int i = start; i < end; i++)
+    {
+      hash ^= bytes[i] & 0xff;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+
+  private static boolean isWhitespace(byte b)
+  {
+    return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+}
@@ -0,0 +1,386 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubMetrics class counts the traffic of one transport instance. Recording only touches
+ * {@link LongAdder} cells and atomic longs, so it neither locks nor allocates on the message path.
+ * The counters are published as a JMX MBean while the transport is connected.
+ */
+public class AwsIoTHubMetrics implements AwsIoTHubMetricsMBean
+{
+  private static final BundleLogger LOGGER = BundleLoggerFactory.getLogger(AwsIoTHubMetrics.class);
+
+  public static final String        DOMAIN = "com.esri.geoevent.transport.aws";
+
+  /**
+   * Histogram class records durations in power-of-two nanosecond buckets.
+   */
+  public static final class Histogram
+  {
+    private static final int     BUCKETS = 64;
+
+    private final AtomicLongArray counts  = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      max     = new AtomicLong();
+
+    public void record(long nanos)
+    {
+      if (nanos < 0)
+        nanos = 0;
+      counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos | 1));
+      long current;
+      while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+        ;
+    }
+
+    /**
+     * @return the upper bound, in nanoseconds, of the bucket holding the given quantile, or 0 if
+     *         nothing was recorded
+     */
+    public long quantile(double quantile)
+    {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++)
+        total += counts.get(i);
+      if (total == 0)
+        return 0;
+      long rank = (long) Math.ceil(total * quantile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return Math.min(max.get(), (i == BUCKETS - 1) ? Long.MAX_VALUE : (1L << i));
+      }
+      return max.get();
+    }
+
+    public long getMax()
+    {
+      return max.get();
+    }
+
+    public void reset()
+    {
+      for (int i = 0; i < BUCKETS; i++)
+        counts.set(i, 0);
+      max.set(0);
+    }
+  }
+
+  private final String               type;
+  private final LongAdder            messagesIn         = new LongAdder();
+  private final LongAdder            bytesIn            = new LongAdder();
+  private final LongAdder            messagesOut        = new LongAdder();
+  private final LongAdder            bytesOut           = new LongAdder();
+  private final LongAdder            acknowledged       = new LongAdder();
+  private final LongAdder            failures           = new LongAdder();
+  private final LongAdder            timeouts           = new LongAdder();
+  private final LongAdder            connectionFailures = new LongAdder();
+  private final LongAdder            reconnects         = new LongAdder();
+  private final LongAdder            filterMatched      = new LongAdder();
+  private final LongAdder            filterDiscarded    = new LongAdder();
+  private final Histogram            receiveLatency     = new Histogram();
+  private final Histogram            ackLatency         = new Histogram();
+  private volatile IntSupplier       queueDepth         = null;
+  private ObjectName                 objectName         = null;
+
+  /**
+   * @param type the JMX <code>type</code> key, normally the simple name of the transport class
+   */
+  public AwsIoTHubMetrics(String type)
+  {
+    this.type = type;
+  }
+
+  public void received(int bytes, long nanos)
+  {
+    messagesIn.increment();
+    bytesIn.add(bytes);
+    receiveLatency.record(nanos);
+  }
+
+  public void sent(int bytes)
+  {
+    messagesOut.increment();
+    bytesOut.add(bytes);
+  }
+
+  public void acknowledged(long nanos)
+  {
+    acknowledged.increment();
+    ackLatency.record(nanos);
+  }
+
+  public void failed()
+  {
+    failures.increment();
+  }
+
+  public void timedOut()
+  {
+    timeouts.increment();
+  }
+
+  public void connectionFailed()
+  {
+    connectionFailures.increment();
+  }
+
+  public void reconnected()
+  {
+    reconnects.increment();
+  }
+
+  public void filtered(boolean matched)
+  {
+    if (matched)
+      filterMatched.increment();
+    else
+      filterDiscarded.increment();
+  }
+
+  public void setQueueDepth(IntSupplier queueDepth)
+  {
+    this.queueDepth = queueDepth;
+  }
+
+  /**
+   * Registers the MBean under <code>com.esri.geoevent.transport.aws:type=&lt;type&gt;,name=&lt;name&gt;</code>,
+   * replacing a previous registration of this instance.
+   */
+  public synchronized void register(String name)
+  {
+    unregister();
+    objectName = registerMBean(this, type, name, null);
+  }
+
+  public synchronized void unregister()
+  {
+    unregisterMBean(objectName);
+    objectName = null;
+  }
+
+  /**
+   * Registers an MBean of a transport instance with the platform MBean server, replacing whatever
+   * was registered under the same name. A transport works the same without JMX, so failures are
+   * only logged.
+   *
+   * @param view an extra <code>view</code> key telling apart the MBeans of one transport, or
+   *          <code>null</code>
+   * @return the name registered, or <code>null</code> if the registration failed
+   */
+  static ObjectName registerMBean(Object mbean, String type, String name, String view)
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name) + ((view != null) ? ",view=" + view : ""));
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+      server.registerMBean(mbean, objectName);
+      return objectName;
+    }
+    catch (Exception e)
+    {
+      LOGGER.warn("METRICS_REGISTRATION_ERROR", e);
+      return null;
+    }
+  }
+
+  static void unregisterMBean(ObjectName objectName)
+  {
+    if (objectName == null)
+      return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    catch (Exception e)
+    {
+      LOGGER.debug("METRICS_REGISTRATION_ERROR", e);
+    }
+  }
+
+  /**
+   * @return a one line summary of the inbound counters for the transport status details
+   */
+  public String getInboundSummary()
+  {
+    return LOGGER.translate("METRICS_IN_STATUS", messagesIn.sum(), bytesIn.sum(), micros(receiveLatency.quantile(0.5)), micros(receiveLatency.quantile(0.99)), getQueueDepth(), reconnects.sum(), connectionFailures.sum());
+  }
+
+  /**
+   * @return a one line summary of the outbound counters for the transport status details
+   */
+  public String getOutboundSummary()
+  {
+    return LOGGER.translate("METRICS_OUT_STATUS", messagesOut.sum(), bytesOut.sum(), micros(ackLatency.quantile(0.5)), micros(ackLatency.quantile(0.99)), failures.sum(), timeouts.sum(), reconnects.sum(), connectionFailures.sum());
+  }
+
+  @Override
+  public long getMessagesIn()
+  {
+    return messagesIn.sum();
+  }
+
+  @Override
+  public long getBytesIn()
+  {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getMessagesOut()
+  {
+    return messagesOut.sum();
+  }
+
+  @Override
+  public long getBytesOut()
+  {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getAcknowledged()
+  {
+    return acknowledged.sum();
+  }
+
+  @Override
+  public long getFailures()
+  {
+    return failures.sum();
+  }
+
+  @Override
+  public long getTimeouts()
+  {
+    return timeouts.sum();
+  }
+
+  @Override
+  public long getConnectionFailures()
+  {
+    return connectionFailures.sum();
+  }
+
+  @Override
+  public long getReconnects()
+  {
+    return reconnects.sum();
+  }
+
+  @Override
+  public long getFilterMatched()
+  {
+    return filterMatched.sum();
+  }
+
+  @Override
+  public long getFilterDiscarded()
+  {
+    return filterDiscarded.sum();
+  }
+
+  @Override
+  public int getQueueDepth()
+  {
+    IntSupplier depth = queueDepth;
+    return (depth != null) ? depth.getAsInt() : 0;
+  }
+
+  @Override
+  public long getReceiveLatencyP50Micros()
+  {
+    return micros(receiveLatency.quantile(0.5));
+  }
+
+  @Override
+  public long getReceiveLatencyP99Micros()
+  {
+    return micros(receiveLatency.quantile(0.99));
+  }
+
+  @Override
+  public long getReceiveLatencyMaxMicros()
+  {
+    return micros(receiveLatency.getMax());
+  }
+
+  @Override
+  public long getAckLatencyP50Micros()
+  {
+    return micros(ackLatency.quantile(0.5));
+  }
+
+  @Override
+  public long getAckLatencyP99Micros()
+  {
+    return micros(ackLatency.quantile(0.99));
+  }
+
+  @Override
+  public long getAckLatencyMaxMicros()
+  {
+    return micros(ackLatency.getMax());
+  }
+
+  @Override
+  public void reset()
+  {
+    messagesIn.reset();
+    bytesIn.reset();
+    messagesOut.reset();
+    bytesOut.reset();
+    acknowledged.reset();
+    failures.reset();
+    timeouts.reset();
+    connectionFailures.reset();
+    reconnects.reset();
+    filterMatched.reset();
+    filterDiscarded.reset();
+    receiveLatency.reset();
+    ackLatency.reset();
+  }
+
+  private static long micros(long nanos)
+  {
+    return nanos / 1000;
+  }
+}
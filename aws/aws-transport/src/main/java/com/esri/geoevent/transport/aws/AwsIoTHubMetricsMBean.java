@@ -0,0 +1,70 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+/**
+ * AwsIoTHubMetricsMBean interface is the JMX view of {@link AwsIoTHubMetrics}. Latencies are in
+ * microseconds; percentiles are the upper bound of the power-of-two bucket they fall in.
+ */
+public interface AwsIoTHubMetricsMBean
+{
+  long getMessagesIn();
+
+  long getBytesIn();
+
+  long getMessagesOut();
+
+  long getBytesOut();
+
+  long getAcknowledged();
+
+  long getFailures();
+
+  long getTimeouts();
+
+  long getConnectionFailures();
+
+  long getReconnects();
+
+  int getQueueDepth();
+
+  long getFilterMatched();
+
+  long getFilterDiscarded();
+
+  long getReceiveLatencyP50Micros();
+
+  long getReceiveLatencyP99Micros();
+
+  long getReceiveLatencyMaxMicros();
+
+  long getAckLatencyP50Micros();
+
+  long getAckLatencyP99Micros();
+
+  long getAckLatencyMaxMicros();
+
+  void reset();
+}
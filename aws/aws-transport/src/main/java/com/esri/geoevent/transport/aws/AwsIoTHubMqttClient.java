@@ -0,0 +1,190 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+import com.amazonaws.services.iot.client.AWSIotQos;
+
+/**
+ * AwsIoTHubMqttClient class extends {@link AWSIotMqttClient} to keep track of the health of one
+ * connection and to route messages received through MQTT shared subscriptions
+ * (<code>$share/&lt;group&gt;/&lt;topic&gt;</code>) to their subscriber.
+ */
+public class AwsIoTHubMqttClient extends AWSIotMqttClient
+{
+  /**
+   * ConnectionListener interface is told about the connection callbacks of the client.
+   */
+  public interface ConnectionListener
+  {
+    void connectionSucceeded(AwsIoTHubMqttClient client);
+
+    /**
+     * The connection was lost; the device SDK is retrying it.
+     */
+    void connectionFailed(AwsIoTHubMqttClient client);
+
+    /**
+     * The connection was closed, either on request or because the device SDK gave up retrying.
+     */
+    void connectionClosed(AwsIoTHubMqttClient client);
+  }
+
+  public static final String SHARED_SUBSCRIPTION_PREFIX = "$share/";
+
+  private final String       clientId;
+  private final AtomicLong   messagesReceived           = new AtomicLong();
+  private final AtomicLong   connectionFailures         = new AtomicLong();
+  private volatile long      lastConnectionChange       = 0;
+  private volatile boolean   connectedBefore            = false;
+  private volatile AwsIoTHubMetrics metrics             = null;
+  private volatile ConnectionListener connectionListener = null;
+
+  public AwsIoTHubMqttClient(String clientEndpoint, String clientId, KeyStore keyStore, String keyPassword)
+  {
+    super(clientEndpoint, clientId, keyStore, keyPassword);
+    this.clientId = clientId;
+  }
+
+  /**
+   * Builds the shared subscription topic filter of a group, so the broker load-balances the
+   * messages of the topic filter across all clients subscribed with the same group.
+   */
+  public static String sharedSubscription(String group, String topicFilter)
+  {
+    return SHARED_SUBSCRIPTION_PREFIX + group + "/" + topicFilter;
+  }
+
+  /**
+   * @return QOS1 for "QOS1" or "1", QOS0 for anything else
+   */
+  public static AWSIotQos parseQos(String value)
+  {
+    String qos = (value != null) ? value.trim().toUpperCase() : "";
+    return ("QOS1".equals(qos) || "1".equals(qos)) ? AWSIotQos.QOS1 : AWSIotQos.QOS0;
+  }
+
+  /**
+   * Messages received through a shared subscription carry the topic they were published to, so the
+   * share prefix has to be removed before the subscription can be matched against it.
+   */
+  @Override
+  public boolean topicFilterMatch(String topicFilter, String topic)
+  {
+    if (topicFilter != null && topicFilter.startsWith(SHARED_SUBSCRIPTION_PREFIX))
+    {
+      int groupEnd = topicFilter.indexOf('/', SHARED_SUBSCRIPTION_PREFIX.length());
+      if (groupEnd > 0)
+        topicFilter = topicFilter.substring(groupEnd + 1);
+    }
+    return super.topicFilterMatch(topicFilter, topic);
+  }
+
+  @Override
+  public void onConnectionSuccess()
+  {
+    // the SDK resubscribes topics and reactivates devices here
+    super.onConnectionSuccess();
+    lastConnectionChange = System.currentTimeMillis();
+    AwsIoTHubMetrics currentMetrics = metrics;
+    if (connectedBefore && currentMetrics != null)
+      currentMetrics.reconnected();
+    connectedBefore = true;
+    ConnectionListener listener = connectionListener;
+    if (listener != null)
+      listener.connectionSucceeded(this);
+  }
+
+  @Override
+  public void onConnectionFailure()
+  {
+    super.onConnectionFailure();
+    connectionFailures.incrementAndGet();
+    lastConnectionChange = System.currentTimeMillis();
+    AwsIoTHubMetrics currentMetrics = metrics;
+    if (currentMetrics != null)
+      currentMetrics.connectionFailed();
+    ConnectionListener listener = connectionListener;
+    if (listener != null)
+      listener.connectionFailed(this);
+  }
+
+  @Override
+  public void onConnectionClosed()
+  {
+    super.onConnectionClosed();
+    lastConnectionChange = System.currentTimeMillis();
+    ConnectionListener listener = connectionListener;
+    if (listener != null)
+      listener.connectionClosed(this);
+  }
+
+  public void messageReceived()
+  {
+    messagesReceived.incrementAndGet();
+  }
+
+  /**
+   * Reports connection failures and reconnects of this client to the metrics of its transport.
+   */
+  public void setMetrics(AwsIoTHubMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  public void setConnectionListener(ConnectionListener connectionListener)
+  {
+    this.connectionListener = connectionListener;
+  }
+
+  public String getClientId()
+  {
+    return clientId;
+  }
+
+  public long getMessagesReceived()
+  {
+    return messagesReceived.get();
+  }
+
+  public long getConnectionFailures()
+  {
+    return connectionFailures.get();
+  }
+
+  public long getLastConnectionChange()
+  {
+    return lastConnectionChange;
+  }
+
+  public boolean isConnected()
+  {
+    return getConnectionStatus() == AWSIotConnectionStatus.CONNECTED;
+  }
+}
@@ -0,0 +1,293 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubOutboundAggregator class packs consecutive records into one MQTT payload, either as
+ * newline delimited records or as a JSON array. A payload is published when the next record would
+ * take it over the size limit, when it holds the maximum number of records or when its first
+ * record has waited for the linger time. Records are aggregated per connection and topic, so the
+ * order given by the connection pool is kept and every payload goes to a single topic.
+ */
+public class AwsIoTHubOutboundAggregator
+{
+  private static final BundleLogger      LOGGER            = BundleLoggerFactory.getLogger(AwsIoTHubOutboundAggregator.class);
+
+  // AWS IoT rejects payloads larger than 128 KB
+  public static final int                MAX_PAYLOAD_BYTES = 128 * 1024;
+
+  // caps the memory held by open batches when a topic template resolves to many topics
+  private static final int               MAX_OPEN_BATCHES  = 64;
+
+  public enum Format
+  {
+    NDJSON,
+    JSON_ARRAY
+  };
+
+  public interface Publisher
+  {
+    void publish(int connection, String topic, byte[] payload);
+  }
+
+  private final Format                   format;
+  private final int                      maxBytes;
+  private final int                      maxRecords;
+  private final long                     lingerNanos;
+  private final Publisher                publisher;
+  private final List<LinkedHashMap<String, Batch>> openBatches;
+  private final ArrayDeque<byte[]>       spareBuffers      = new ArrayDeque<byte[]>();
+  private final ScheduledExecutorService flusher;
+  private boolean                        running           = false;
+  private boolean                        flushScheduled    = false;
+
+  private static final class Batch
+  {
+    final int    connection;
+    final String topic;
+    final byte[] buffer;
+    final long   firstRecordNanos = System.nanoTime();
+    int          length;
+    int          records;
+
+    Batch(int connection, String topic, byte[] buffer)
+    {
+      this.connection = connection;
+      this.topic = topic;
+      this.buffer = buffer;
+    }
+  }
+
+  public AwsIoTHubOutboundAggregator(String name, int connections, Format format, int maxBytes, int maxRecords, long lingerMillis, Publisher publisher)
+  {
+    this.format = format;
+    this.maxBytes = Math.max(16, Math.min(maxBytes, MAX_PAYLOAD_BYTES));
+    this.maxRecords = Math.max(1, maxRecords);
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, lingerMillis));
+    this.publisher = publisher;
+    this.openBatches = new ArrayList<LinkedHashMap<String, Batch>>();
+    for (int i = 0; i < Math.max(1, connections); i++)
+      openBatches.add(new LinkedHashMap<String, Batch>());
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-aggregation-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Enables the linger flush. The flusher only wakes up while a batch is open, once for the oldest
+   * batch's linger deadline.
+   */
+  public synchronized void start()
+  {
+    running = true;
+    scheduleFlush();
+  }
+
+  public void stop()
+  {
+    synchronized (this)
+    {
+      running = false;
+    }
+    flusher.shutdownNow();
+    flushAll();
+  }
+
+  public synchronized void add(int connection, String topic, byte[] record)
+  {
+    int length = trimmedLength(record);
+    if (length == 0)
+      return;
+
+    LinkedHashMap<String, Batch> batches = openBatches.get(connection);
+    Batch batch = batches.get(topic);
+    if (openingLength() + length + closingLength() > maxBytes)
+    {
+      // too large to share a payload with anything else; it goes out on its own, after the
+      // records added before it so the topic keeps its order
+      if (batch != null)
+        flush(batch);
+      publisher.publish(connection, topic, wrap(record, length));
+      return;
+    }
+
+    if (batch != null && batch.length + 1 + length + closingLength() > maxBytes)
+    {
+      flush(batch);
+      batch = null;
+    }
+
+    if (batch == null)
+    {
+      if (batches.size() >= MAX_OPEN_BATCHES)
+        flush(batches.values().iterator().next());
+      byte[] buffer = spareBuffers.poll();
+      batch = new Batch(connection, topic, buffer != null ? buffer : new byte[maxBytes]);
+      batches.put(topic, batch);
+      scheduleFlush();
+      if (format == Format.JSON_ARRAY)
+        batch.buffer[batch.length++] = '[';
+    }
+    else
+    {
+      batch.buffer[batch.length++] = (byte) (format == Format.JSON_ARRAY ? ',' : '\n');
+    }
+    System.arraycopy(record, 0, batch.buffer, batch.length, length);
+    batch.length += length;
+    batch.records++;
+
+    if (batch.records >= maxRecords)
+      flush(batch);
+  }
+
+  public synchronized void flushAll()
+  {
+    for (LinkedHashMap<String, Batch> batches : openBatches)
+    {
+      while (!batches.isEmpty())
+      {
+        try
+        {
+          flush(batches.values().iterator().next());
+        }
+        catch (Exception e)
+        {
+          LOGGER.error("UNEXPECTED_ERROR", e);
+        }
+      }
+    }
+  }
+
+  private void flush(Batch batch)
+  {
+    openBatches.get(batch.connection).remove(batch.topic);
+    if (format == Format.JSON_ARRAY)
+      batch.buffer[batch.length++] = ']';
+    byte[] payload = Arrays.copyOf(batch.buffer, batch.length);
+    if (spareBuffers.size() < MAX_OPEN_BATCHES)
+      spareBuffers.push(batch.buffer);
+    publisher.publish(batch.connection, batch.topic, payload);
+  }
+
+  /**
+   * Schedules the next linger flush for the oldest open batch, unless one is already scheduled.
+   */
+  private void scheduleFlush()
+  {
+    if (!running || flushScheduled)
+      return;
+    long oldest = Long.MAX_VALUE;
+    boolean open = false;
+    for (LinkedHashMap<String, Batch> batches : openBatches)
+    {
+      if (!batches.isEmpty())
+      {
+        long first = batches.values().iterator().next().firstRecordNanos;
+        oldest = open ? Math.min(oldest, first) : first;
+        open = true;
+      }
+    }
+    if (!open)
+      return;
+    flushScheduled = true;
+    flusher.schedule(this::flushLingered, Math.max(0, oldest + lingerNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  private synchronized void flushLingered()
+  {
+    flushScheduled = false;
+    // batches are kept in the order they were opened, so the oldest of each connection come first
+    long now = System.nanoTime();
+    for (LinkedHashMap<String, Batch> batches : openBatches)
+    {
+      try
+      {
+        Iterator<Batch> lingering = batches.values().iterator();
+        while (lingering.hasNext())
+        {
+          Batch batch = lingering.next();
+          if (now - batch.firstRecordNanos < lingerNanos)
+            break;
+          lingering.remove();
+          flush(batch);
+        }
+      }
+      catch (Exception e)
+      {
+        LOGGER.error("UNEXPECTED_ERROR", e);
+      }
+    }
+    scheduleFlush();
+  }
+
+  private byte[] wrap(byte[] record, int length)
+  {
+    if (format != Format.JSON_ARRAY)
+      return length == record.length ? record : Arrays.copyOf(record, length);
+
+    byte[] payload = new byte[length + 2];
+    payload[0] = '[';
+    System.arraycopy(record, 0, payload, 1, length);
+    payload[length + 1] = ']';
+    return payload;
+  }
+
+  private int openingLength()
+  {
+    return format == Format.JSON_ARRAY ? 1 : 0;
+  }
+
+  private int closingLength()
+  {
+    return format == Format.JSON_ARRAY ? 1 : 0;
+  }
+
+  /**
+   * Adapters usually end each record with a line separator, which would otherwise show up inside
+   * the aggregated payload.
+   */
+  private static int trimmedLength(byte[] record)
+  {
+    int length = record.length;
+    while (length > 0 && (record[length - 1] == '\n' || record[length - 1] == '\r' || record[length - 1] == ' ' || record[length - 1] == '\t'))
+      length--;
+    return length;
+  }
+}
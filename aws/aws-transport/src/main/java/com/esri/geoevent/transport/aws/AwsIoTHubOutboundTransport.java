@@ -24,15 +24,19 @@
 
 package com.esri.geoevent.transport.aws;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.amazonaws.services.iot.client.AWSIotException;
 import com.amazonaws.services.iot.client.AWSIotMessage;
 import com.amazonaws.services.iot.client.AWSIotMqttClient;
 import com.amazonaws.services.iot.client.AWSIotQos;
+import com.esri.geoevent.transport.aws.AwsIoTHubCodec.Compression;
 import com.esri.geoevent.transport.aws.AwsIoTHubUtil.KeyStorePasswordPair;
 import com.esri.ges.core.component.ComponentException;
 import com.esri.ges.core.component.RunningException;
@@ -41,6 +45,7 @@ import com.esri.ges.framework.i18n.BundleLogger;
 import com.esri.ges.framework.i18n.BundleLoggerFactory;
 import com.esri.ges.transport.OutboundTransportBase;
 import com.esri.ges.transport.TransportDefinition;
+import com.esri.ges.util.Converter;
 import com.esri.ges.util.Validator;
 
 public class AwsIoTHubOutboundTransport extends OutboundTransportBase
@@ -56,17 +61,63 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
   private String					x509Certificate		   = "";
   private String 					privateKey			   = "";
   private String 					topicName			   = "";
+  private int                       connectionPoolSize     = 1;
+  private String                    partitionKeyField      = "";
+  private int                       maxInFlight            = 1000;
+  private String                    inFlightOverflowPolicy = AwsIoTHubPublishWindow.OverflowPolicy.BLOCK.toString();
+  private int                       publishTimeoutMillis   = 5000;
+  private int                       publishRetries         = 3;
+  private boolean                   aggregationEnabled     = false;
+  private String                    aggregationFormat      = AwsIoTHubOutboundAggregator.Format.NDJSON.toString();
+  private int                       aggregationMaxBytes    = 65536;
+  private int                       aggregationMaxRecords  = 500;
+  private int                       aggregationLingerMillis = 50;
+  private String                    compression            = Compression.NONE.toString();
+  private int                       topicCacheSize         = 10000;
+  private String                    thingNameField         = "";
+  private int                       deviceCacheSize        = 1000;
+  private int                       deviceIdleTimeoutSeconds = 300;
+  private int                       shadowFlushIntervalMillis = 0;
+  private boolean                   shadowSuppressUnchanged = false;
+  private int                       maxOutstandingShadowUpdates = 100;
+  private int                       shadowUpdateTimeoutMillis = 10000;
+  private boolean                   shadowDeltaEncoding    = false;
+  private int                       diagnosticsSampleRate  = 0;
+  private int                       diagnosticsCaptureSize = 100;
+  private boolean                   traceEnabled           = false;
+  private int                       reconnectBaseDelay     = 1000;
+  private int                       reconnectMaxDelay      = 60000;
+  private String                    publishQos             = "QOS0";
+  private boolean                   spillEnabled           = false;
+  private String                    spillDirectory         = "";
+  private int                       spillMaxSize           = 256;
+  private int                       spillReplayRate        = 1000;
 
   private volatile boolean          propertiesNeedUpdating = false;
 
   private boolean                   isEventHubType         = true;
 
-  // device id client and receiver
-  private AwsIoTHubDevice 					geIoTDevice	   = null;
+  // attached devices, one per thing being updated
+  private volatile AwsIoTHubDeviceCache     deviceCache    = null;
+  private volatile AwsIoTHubShadowCoalescer shadowCoalescer = null;
+  private volatile AwsIoTHubShadowUpdater   shadowUpdater  = null;
+  private volatile AwsIoTHubShadowDelta     shadowDelta    = null;
   // event hub client
   private String							clientId	   = null;	
+  private String[]                          credentialFiles = null;
   private AWSIotMqttClient 					awsClient	   = null;
-  private AWSIotMessage 					iotMessage	   = null;	
+  private volatile AwsIoTHubConnectionPool  connectionPool = null;
+  private volatile AwsIoTHubPublishWindow   publishWindow  = null;
+  private volatile AwsIoTHubOutboundAggregator aggregator  = null;
+  private volatile Compression              payloadCompression = Compression.NONE;
+  private volatile AWSIotQos                qos            = AWSIotQos.QOS0;
+  private volatile AwsIoTHubTopicTemplate   topicTemplate  = null;
+  private volatile AwsIoTHubDiagnostics     diagnostics    = null;
+  private volatile AwsIoTHubTracer          tracer         = null;
+  private volatile AwsIoTHubConnectionSupervisor supervisor = null;
+  private volatile AwsIoTHubSpillQueue      spillQueue     = null;
+  private volatile AwsIoTHubCodecPool       codecPool      = null;
+  private final AwsIoTHubMetrics            metrics        = new AwsIoTHubMetrics(AwsIoTHubOutboundTransport.class.getSimpleName());
   
   public enum AwsIoTServiceType {
 	  IOT_TOPIC,
@@ -82,9 +133,9 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
   public void start() throws RunningException
   {
 	try{ 	     
+    // the state moves to STARTED once the connection supervisor has connected every client
     setRunningState(RunningState.STARTING);
     connectToAwsEventHub();
-    setRunningState(RunningState.STARTED);
     
 	}catch(Exception e){
 		LOGGER.error("INIT_ERROR", e);		
@@ -157,11 +208,340 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
          somethingChanged = true;
         }
       }         
+      //number of publishing connections
+      if (hasProperty("connectionPoolSize"))
+      {
+        int newConnectionPoolSize = Converter.convertToInteger(getProperty("connectionPoolSize").getValueAsString(), 1);
+        if (connectionPoolSize != newConnectionPoolSize)
+        {
+          connectionPoolSize = newConnectionPoolSize;
+          somethingChanged = true;
+        }
+      }
+      //field whose value picks the publishing connection
+      if (hasProperty("partitionKeyField"))
+      {
+        String newPartitionKeyField = getProperty("partitionKeyField").getValueAsString();
+        if (newPartitionKeyField == null)
+          newPartitionKeyField = "";
+        if (!partitionKeyField.equals(newPartitionKeyField))
+        {
+          partitionKeyField = newPartitionKeyField;
+          somethingChanged = true;
+        }
+      }
+      
+      //in-flight publish window
+      if (hasProperty("maxInFlight"))
+      {
+        int newMaxInFlight = Converter.convertToInteger(getProperty("maxInFlight").getValueAsString(), 1000);
+        if (maxInFlight != newMaxInFlight)
+        {
+          maxInFlight = newMaxInFlight;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("inFlightOverflowPolicy"))
+      {
+        String newInFlightOverflowPolicy = getProperty("inFlightOverflowPolicy").getValueAsString();
+        if (!inFlightOverflowPolicy.equals(newInFlightOverflowPolicy))
+        {
+          inFlightOverflowPolicy = newInFlightOverflowPolicy;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("publishTimeout"))
+      {
+        int newPublishTimeoutMillis = Converter.convertToInteger(getProperty("publishTimeout").getValueAsString(), 5000);
+        if (publishTimeoutMillis != newPublishTimeoutMillis)
+        {
+          publishTimeoutMillis = newPublishTimeoutMillis;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("publishRetries"))
+      {
+        int newPublishRetries = Converter.convertToInteger(getProperty("publishRetries").getValueAsString(), 3);
+        if (publishRetries != newPublishRetries)
+        {
+          publishRetries = newPublishRetries;
+          somethingChanged = true;
+        }
+      }
+      //outbound aggregation
+      if (hasProperty("aggregationEnabled"))
+      {
+        boolean newAggregationEnabled = Converter.convertToBoolean(getProperty("aggregationEnabled").getValueAsString(), false);
+        if (aggregationEnabled != newAggregationEnabled)
+        {
+          aggregationEnabled = newAggregationEnabled;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("aggregationFormat"))
+      {
+        String newAggregationFormat = getProperty("aggregationFormat").getValueAsString();
+        if (!aggregationFormat.equals(newAggregationFormat))
+        {
+          aggregationFormat = newAggregationFormat;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("aggregationMaxBytes"))
+      {
+        int newAggregationMaxBytes = Converter.convertToInteger(getProperty("aggregationMaxBytes").getValueAsString(), 65536);
+        if (aggregationMaxBytes != newAggregationMaxBytes)
+        {
+          aggregationMaxBytes = newAggregationMaxBytes;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("aggregationMaxRecords"))
+      {
+        int newAggregationMaxRecords = Converter.convertToInteger(getProperty("aggregationMaxRecords").getValueAsString(), 500);
+        if (aggregationMaxRecords != newAggregationMaxRecords)
+        {
+          aggregationMaxRecords = newAggregationMaxRecords;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("aggregationLingerMillis"))
+      {
+        int newAggregationLingerMillis = Converter.convertToInteger(getProperty("aggregationLingerMillis").getValueAsString(), 50);
+        if (aggregationLingerMillis != newAggregationLingerMillis)
+        {
+          aggregationLingerMillis = newAggregationLingerMillis;
+          somethingChanged = true;
+        }
+      }
+      //resolved topic cache size
+      if (hasProperty("topicCacheSize"))
+      {
+        int newTopicCacheSize = Converter.convertToInteger(getProperty("topicCacheSize").getValueAsString(), 10000);
+        if (topicCacheSize != newTopicCacheSize)
+        {
+          topicCacheSize = newTopicCacheSize;
+          somethingChanged = true;
+        }
+      }
+      //field holding the thing name of each record
+      if (hasProperty("thingNameField"))
+      {
+        String newThingNameField = getProperty("thingNameField").getValueAsString();
+        if (newThingNameField == null)
+          newThingNameField = "";
+        if (!thingNameField.equals(newThingNameField))
+        {
+          thingNameField = newThingNameField;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("deviceCacheSize"))
+      {
+        int newDeviceCacheSize = Converter.convertToInteger(getProperty("deviceCacheSize").getValueAsString(), 1000);
+        if (deviceCacheSize != newDeviceCacheSize)
+        {
+          deviceCacheSize = newDeviceCacheSize;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("deviceIdleTimeout"))
+      {
+        int newDeviceIdleTimeoutSeconds = Converter.convertToInteger(getProperty("deviceIdleTimeout").getValueAsString(), 300);
+        if (deviceIdleTimeoutSeconds != newDeviceIdleTimeoutSeconds)
+        {
+          deviceIdleTimeoutSeconds = newDeviceIdleTimeoutSeconds;
+          somethingChanged = true;
+        }
+      }
+      //shadow update coalescing
+      if (hasProperty("shadowFlushInterval"))
+      {
+        int newShadowFlushIntervalMillis = Converter.convertToInteger(getProperty("shadowFlushInterval").getValueAsString(), 0);
+        if (shadowFlushIntervalMillis != newShadowFlushIntervalMillis)
+        {
+          shadowFlushIntervalMillis = newShadowFlushIntervalMillis;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("shadowSuppressUnchanged"))
+      {
+        boolean newShadowSuppressUnchanged = Converter.convertToBoolean(getProperty("shadowSuppressUnchanged").getValueAsString(), false);
+        if (shadowSuppressUnchanged != newShadowSuppressUnchanged)
+        {
+          shadowSuppressUnchanged = newShadowSuppressUnchanged;
+          somethingChanged = true;
+        }
+      }
+      //asynchronous shadow updates
+      if (hasProperty("maxOutstandingShadowUpdates"))
+      {
+        int newMaxOutstandingShadowUpdates = Converter.convertToInteger(getProperty("maxOutstandingShadowUpdates").getValueAsString(), 100);
+        if (maxOutstandingShadowUpdates != newMaxOutstandingShadowUpdates)
+        {
+          maxOutstandingShadowUpdates = newMaxOutstandingShadowUpdates;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("shadowUpdateTimeout"))
+      {
+        int newShadowUpdateTimeoutMillis = Converter.convertToInteger(getProperty("shadowUpdateTimeout").getValueAsString(), 10000);
+        if (shadowUpdateTimeoutMillis != newShadowUpdateTimeoutMillis)
+        {
+          shadowUpdateTimeoutMillis = newShadowUpdateTimeoutMillis;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("shadowDeltaEncoding"))
+      {
+        boolean newShadowDeltaEncoding = Converter.convertToBoolean(getProperty("shadowDeltaEncoding").getValueAsString(), false);
+        if (shadowDeltaEncoding != newShadowDeltaEncoding)
+        {
+          shadowDeltaEncoding = newShadowDeltaEncoding;
+          somethingChanged = true;
+        }
+      }
+      //payload compression
+      if (hasProperty("compression"))
+      {
+        String newCompression = getProperty("compression").getValueAsString();
+        if (!compression.equals(newCompression))
+        {
+          compression = newCompression;
+          somethingChanged = true;
+        }
+      }
+      //sampled payload capture
+      if (hasProperty("diagnosticsSampleRate"))
+      {
+        int newDiagnosticsSampleRate = Converter.convertToInteger(getProperty("diagnosticsSampleRate").getValueAsString(), 0);
+        if (diagnosticsSampleRate != newDiagnosticsSampleRate)
+        {
+          diagnosticsSampleRate = newDiagnosticsSampleRate;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("diagnosticsCaptureSize"))
+      {
+        int newDiagnosticsCaptureSize = Converter.convertToInteger(getProperty("diagnosticsCaptureSize").getValueAsString(), 100);
+        if (diagnosticsCaptureSize != newDiagnosticsCaptureSize)
+        {
+          diagnosticsCaptureSize = newDiagnosticsCaptureSize;
+          somethingChanged = true;
+        }
+      }
+      //end-to-end tracing
+      if (hasProperty("traceEnabled"))
+      {
+        boolean newTraceEnabled = Converter.convertToBoolean(getProperty("traceEnabled").getValueAsString(), false);
+        if (traceEnabled != newTraceEnabled)
+        {
+          traceEnabled = newTraceEnabled;
+          somethingChanged = true;
+        }
+      }
+      //delay before the first reconnect attempt, doubled on each further failure
+      if (hasProperty("reconnectBaseDelay"))
+      {
+        int newReconnectBaseDelay = Converter.convertToInteger(getProperty("reconnectBaseDelay").getValueAsString(), 1000);
+        if (reconnectBaseDelay != newReconnectBaseDelay)
+        {
+          reconnectBaseDelay = newReconnectBaseDelay;
+          somethingChanged = true;
+        }
+      }
+      //upper bound of the reconnect delay
+      if (hasProperty("reconnectMaxDelay"))
+      {
+        int newReconnectMaxDelay = Converter.convertToInteger(getProperty("reconnectMaxDelay").getValueAsString(), 60000);
+        if (reconnectMaxDelay != newReconnectMaxDelay)
+        {
+          reconnectMaxDelay = newReconnectMaxDelay;
+          somethingChanged = true;
+        }
+      }
+      //store records on disk while they cannot be published
+      if (hasProperty("spillEnabled"))
+      {
+        boolean newSpillEnabled = Converter.convertToBoolean(getProperty("spillEnabled").getValueAsString(), false);
+        if (spillEnabled != newSpillEnabled)
+        {
+          spillEnabled = newSpillEnabled;
+          somethingChanged = true;
+        }
+      }
+      if (hasProperty("spillDirectory"))
+      {
+        String newSpillDirectory = getProperty("spillDirectory").getValueAsString();
+        if (newSpillDirectory == null)
+          newSpillDirectory = "";
+        if (!spillDirectory.equals(newSpillDirectory))
+        {
+          spillDirectory = newSpillDirectory;
+          somethingChanged = true;
+        }
+      }
+      //disk budget of the spill queue in MB
+      if (hasProperty("spillMaxSize"))
+      {
+        int newSpillMaxSize = Converter.convertToInteger(getProperty("spillMaxSize").getValueAsString(), 256);
+        if (spillMaxSize != newSpillMaxSize)
+        {
+          spillMaxSize = newSpillMaxSize;
+          somethingChanged = true;
+        }
+      }
+      //records per second replayed after reconnecting
+      if (hasProperty("spillReplayRate"))
+      {
+        int newSpillReplayRate = Converter.convertToInteger(getProperty("spillReplayRate").getValueAsString(), 1000);
+        if (spillReplayRate != newSpillReplayRate)
+        {
+          spillReplayRate = newSpillReplayRate;
+          somethingChanged = true;
+        }
+      }
+      //QoS of the topic publishes
+      if (hasProperty("publishQos"))
+      {
+        String newPublishQos = getProperty("publishQos").getValueAsString();
+        if (newPublishQos == null)
+          newPublishQos = "";
+        if (!publishQos.equals(newPublishQos))
+        {
+          publishQos = newPublishQos;
+          somethingChanged = true;
+        }
+      }
       
       propertiesNeedUpdating = somethingChanged;    
   }
 
-  private void connectToAwsEventHub() throws AWSIotException
+  private static AwsIoTHubOutboundAggregator.Format parseAggregationFormat(String value)
+  {
+    try
+    {
+      return AwsIoTHubOutboundAggregator.Format.valueOf(value.trim().toUpperCase());
+    }
+    catch (Exception e)
+    {
+      return AwsIoTHubOutboundAggregator.Format.NDJSON;
+    }
+  }
+
+  private static AwsIoTHubPublishWindow.OverflowPolicy parseInFlightOverflowPolicy(String value)
+  {
+    try
+    {
+      return AwsIoTHubPublishWindow.OverflowPolicy.valueOf(value.trim().toUpperCase());
+    }
+    catch (Exception e)
+    {
+      return AwsIoTHubPublishWindow.OverflowPolicy.BLOCK;
+    }
+  }
+
+  private void connectToAwsEventHub() throws AWSIotException, IOException
   {
       applyProperties();
       if (propertiesNeedUpdating)
@@ -174,25 +554,73 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       isEventHubType = AwsIoTServiceType.IOT_TOPIC.toString().equals(iotServiceType);
       
       //get KeyStore credentials            
-      KeyStorePasswordPair pair = AwsIoTHubUtil.getKeyStorePasswordPair(x509Certificate, privateKey, null);
+      KeyStorePasswordPair pair = loadCredentials();
       
-      //create AwsClient
+      //create AwsClient, one per pooled connection; pooled client ids are derived from the same base client id
       clientId = String.format("%s-%s", deviceIdFieldName, new BigInteger(128, new SecureRandom()).toString(32));
-      awsClient = new AWSIotMqttClient(clientEndpoint, clientId , pair.keyStore, pair.keyPassword);
+      int poolSize = Math.max(1, connectionPoolSize);
+      List<AwsIoTHubMqttClient> clients = new ArrayList<AwsIoTHubMqttClient>(poolSize);
+      for (int i = 0; i < poolSize; i++)
+      {
+        String pooledClientId = (poolSize > 1) ? clientId + "-" + i : clientId;
+        AwsIoTHubMqttClient client = createClient(pooledClientId, pair);
+        client.setMetrics(metrics);
+        clients.add(client);
+      }
+      awsClient = clients.get(0);
+      connectionPool = new AwsIoTHubConnectionPool(clients, partitionKeyField);
+      diagnostics = new AwsIoTHubDiagnostics(AwsIoTHubOutboundTransport.class.getSimpleName(), diagnosticsSampleRate, diagnosticsCaptureSize);
+      // shadow documents are stored as sent, so only published records are stamped
+      tracer = (traceEnabled && isEventHubType) ? new AwsIoTHubTracer(AwsIoTHubOutboundTransport.class.getSimpleName(), clientId, topicCacheSize) : null;
+      payloadCompression = AwsIoTHubCodec.parseCompression(compression);
+      codecPool = payloadCompression != Compression.NONE ? new AwsIoTHubCodecPool(8) : null;
+      qos = AwsIoTHubMqttClient.parseQos(publishQos);
+      topicTemplate = new AwsIoTHubTopicTemplate(topicName, topicCacheSize);
+      publishWindow = new AwsIoTHubPublishWindow(maxInFlight, parseInFlightOverflowPolicy(inFlightOverflowPolicy), publishTimeoutMillis, publishRetries);
+      if (aggregationEnabled && isEventHubType)
+      {
+        AwsIoTHubConnectionPool pool = connectionPool;
+        aggregator = new AwsIoTHubOutboundAggregator(clientId, pool.size(), parseAggregationFormat(aggregationFormat), aggregationMaxBytes, aggregationMaxRecords, aggregationLingerMillis,
+            (connection, topic, payload) -> publish(pool, connection, topic, payload));
+        aggregator.start();
+      }
+      if (spillEnabled && isEventHubType)
+      {
+        // records a previous run left on disk are replayed first
+        File directory = Validator.isNotBlank(spillDirectory) ? new File(spillDirectory.trim()) : defaultSpillDirectory();
+        spillQueue = new AwsIoTHubSpillQueue(directory, spillMaxSize * 1024L * 1024L);
+        spillQueue.start(clientId, this::replay, this::isConnected, spillReplayRate);
+      }
       
       //attach device
       if (!isEventHubType)
       {         	    	
-        // IoT Device attach
-    	geIoTDevice = new AwsIoTHubDevice(deviceIdFieldName);
-    	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Attaching device:" + geIoTDevice.getThingName());
-    	awsClient.attach(geIoTDevice);    	        
+        // IoT Device attach; devices named by a record field are attached when their first record arrives
+    	deviceCache = new AwsIoTHubDeviceCache(clientId, awsClient, deviceIdFieldName, thingNameField, deviceCacheSize, deviceIdleTimeoutSeconds * 1000L);
+    	if (Validator.isBlank(thingNameField) && Validator.isNotBlank(deviceIdFieldName))
+    	{
+    	  LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Attaching device:" + deviceIdFieldName);
+    	  deviceCache.get(deviceIdFieldName);
+    	}
+    	deviceCache.start();
+    	shadowDelta = shadowDeltaEncoding ? new AwsIoTHubShadowDelta(deviceCacheSize) : null;
+    	shadowUpdater = new AwsIoTHubShadowUpdater(topicName, maxOutstandingShadowUpdates, publishRetries, this::updateShadow, shadowDelta);
+    	shadowCoalescer = new AwsIoTHubShadowCoalescer(clientId, shadowFlushIntervalMillis, shadowSuppressUnchanged, deviceCacheSize, shadowUpdater::submit);
+    	shadowUpdater.setFailureListener(shadowCoalescer::failed);
+    	shadowCoalescer.start();
       }      
       
-      //connect to Aws IoT Hub
-      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId +": Connecting");
-      awsClient.connect();    
-      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": Connected");
+      metrics.setQueueDepth(this::getQueueDepth);
+      metrics.register(clientId);
+      diagnostics.register(clientId);
+
+      //connect to Aws IoT Hub off the calling thread; the supervisor retries with backoff until the
+      //broker is reachable and reconnects whenever a connection is closed
+      AwsIoTHubConnectionSupervisor newSupervisor = new AwsIoTHubConnectionSupervisor(clientId, this::connectClients, this::isConnected, this::connectionStateChanged, reconnectBaseDelay, reconnectMaxDelay);
+      for (AwsIoTHubMqttClient client : clients)
+        client.setConnectionListener(newSupervisor);
+      supervisor = newSupervisor;
+      newSupervisor.start();
       
       //delete existing shawdow if any
       /*if(geIoTDevice != null){
@@ -200,6 +628,98 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       }*/
   }
 
+  /**
+   * Connects the pooled clients that are not connected. Attached devices are activated by the
+   * clients on every connect.
+   */
+  private synchronized void connectClients() throws AWSIotException
+  {
+    AwsIoTHubConnectionPool pool = connectionPool;
+    for (int i = 0; pool != null && i < pool.size(); i++)
+    {
+      AwsIoTHubMqttClient client = pool.get(i);
+      if (!client.isConnected())
+      {
+        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + client.getClientId() +": Connecting");
+        client.connect();    
+        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + client.getClientId() + ": Connected");
+      }
+    }
+  }
+
+  private boolean isConnected()
+  {
+    AwsIoTHubConnectionPool pool = connectionPool;
+    for (int i = 0; pool != null && i < pool.size(); i++)
+    {
+      if (!pool.get(i).isConnected())
+        return false;
+    }
+    return pool != null;
+  }
+
+  private void connectionStateChanged(AwsIoTHubConnectionSupervisor.State state, String detail)
+  {
+    switch (state)
+    {
+      case CONNECTED:
+        setErrorMessage(null);
+        setRunningState(RunningState.STARTED);
+        break;
+      case CONNECTING:
+      case RECONNECTING:
+        setErrorMessage(detail);
+        setRunningState(RunningState.STARTING);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * @return a spill directory of this output under the temporary directory. The transport does not
+   *         see the name of the output it belongs to, so the directory is named after the settings
+   *         that set an output's records apart: device id, endpoint and topic.
+   */
+  private File defaultSpillDirectory()
+  {
+    String name = (deviceIdFieldName != null ? deviceIdFieldName : "").replaceAll("[^A-Za-z0-9_-]", "_");
+    String settings = deviceIdFieldName + '\n' + clientEndpoint + '\n' + topicName;
+    return new File(new File(System.getProperty("java.io.tmpdir"), "aws-iot-spill"), name + "-" + Integer.toHexString(settings.hashCode()));
+  }
+
+  /**
+   * Loads the certificate and private key the connections authenticate with, sharing the parsed
+   * key store with every other transport using the same files.
+   */
+  protected KeyStorePasswordPair loadCredentials()
+  {
+    releaseCredentials();
+    credentialFiles = new String[] { x509Certificate, privateKey };
+    return AwsIoTHubCredentialCache.get(x509Certificate, privateKey);
+  }
+
+  /**
+   * Gives back the key store taken by {@link #loadCredentials()}, so the cache can drop it once no
+   * transport uses the files any more.
+   */
+  protected void releaseCredentials()
+  {
+    String[] files = credentialFiles;
+    credentialFiles = null;
+    if (files != null)
+      AwsIoTHubCredentialCache.release(files[0], files[1]);
+  }
+
+  /**
+   * Creates the MQTT client of one connection. Benchmarks and tests override this to run the
+   * transport without a broker.
+   */
+  protected AwsIoTHubMqttClient createClient(String connectionClientId, KeyStorePasswordPair pair)
+  {
+    return new AwsIoTHubMqttClient(clientEndpoint, connectionClientId, pair.keyStore, pair.keyPassword);
+  }
+
   @Override
   public synchronized void stop()
 	{
@@ -210,20 +730,48 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
   
   private void cleanup()
   {
+    AwsIoTHubConnectionSupervisor currentSupervisor = supervisor;
+    supervisor = null;
+    if (currentSupervisor != null)
+      currentSupervisor.stop();
+    metrics.unregister();
+    AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+    if (currentDiagnostics != null)
+      currentDiagnostics.unregister();
+    tracer = null;
+    // publish whatever is still being aggregated while the connections are up
+    AwsIoTHubOutboundAggregator currentAggregator = aggregator;
+    aggregator = null;
+    if (currentAggregator != null)
+      currentAggregator.stop();
+    // what is still spilled stays on disk for the next start
+    AwsIoTHubSpillQueue spill = spillQueue;
+    spillQueue = null;
+    if (spill != null)
+      spill.stop();
+    // likewise for the pending shadow states
+    AwsIoTHubShadowCoalescer coalescer = shadowCoalescer;
+    shadowCoalescer = null;
+    if (coalescer != null)
+      coalescer.stop();
+    AwsIoTHubShadowUpdater updater = shadowUpdater;
+    shadowUpdater = null;
+    if (updater != null)
+      updater.stop();
+    shadowDelta = null;
+    // the pool is kept, so a late publish still gets a codec, which is ended after use
+    AwsIoTHubCodecPool currentCodecPool = codecPool;
+    if (currentCodecPool != null)
+      currentCodecPool.close();
+
     // clean up the aws hub client       	  
 	  try
       {
-		  if (awsClient != null)
+		  if (deviceCache != null)
 	         {	        	
-	        	if (geIoTDevice !=null) {      
-	        		LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": detaching device: " + geIoTDevice.getThingName());
-	        		awsClient.detach(geIoTDevice);        		
-	        		LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": detached device: " + geIoTDevice.getThingName());
-	        		//geIoTDevice.delete(5000);
-	        	}
-	        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": disconnecting");
-	        	awsClient.disconnect(5000);
-	        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": disconnected");
+	        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": detaching " + deviceCache.size() + " device(s)");
+	        	deviceCache.stop();
+	        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": detached devices");
 	         }	         
       }
       catch (Exception e)
@@ -231,9 +779,28 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
         LOGGER.error("CLEANUP_ERROR", e);            		  
 		setErrorMessage(e.getMessage());  		  
       }finally {
-	    geIoTDevice = null;
+	    deviceCache = null;
 	    awsClient = null;
       }                   
+	  AwsIoTHubConnectionPool pool = connectionPool;
+	  connectionPool = null;
+	  publishWindow = null;
+	  for (int i = 0; pool != null && i < pool.size(); i++)
+	  {
+	    AwsIoTHubMqttClient client = pool.get(i);
+	    try
+	    {
+	      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + client.getClientId() + ": disconnecting");
+	      client.disconnect(5000);
+	      LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + client.getClientId() + ": disconnected");
+	    }
+	    catch (Exception e)
+	    {
+	      LOGGER.error("CLEANUP_ERROR", e);
+	      setErrorMessage(e.getMessage());
+	    }
+	  }
+	  releaseCredentials();
   }
 
   @Override
@@ -241,16 +808,32 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
   {         
       try
       {
-    	// Send Event to an Event Hub
-        String message = new String(buffer.array(), StandardCharsets.UTF_8);
-        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
-    	iotMessage = new AWSIoTPublishListener(topicName, AWSIotQos.QOS0, bytes);
+    	// Send Event to an Event Hub; the payload is copied once since publishing completes asynchronously
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
     	 
         if (isEventHubType)
         {                                      
-          if (awsClient != null){
-        	  LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": publishing to topic : " + this.topicName + ", message:  >>> " + message);        	  
-        	  awsClient.publish(iotMessage);
+          AwsIoTHubConnectionPool pool = connectionPool;
+          AwsIoTHubTopicTemplate template = topicTemplate;
+          if (pool != null && template != null){
+        	  // records missing a topic template field are counted and skipped
+        	  String topic = template.resolve(bytes, 0, bytes.length);
+        	  if (topic == null)
+        	    return;
+        	  int connection = pool.select(bytes, 0, bytes.length);
+        	  // stamped once the connection is known, as sequences count per connection and topic
+        	  AwsIoTHubTracer currentTracer = tracer;
+        	  if (currentTracer != null)
+        	    bytes = currentTracer.stamp(connection, topic, bytes);
+        	  if (currentDiagnostics != null)
+        	    currentDiagnostics.capture("out", topic, bytes, 0, bytes.length);
+        	  AwsIoTHubOutboundAggregator currentAggregator = aggregator;
+        	  if (currentAggregator != null)
+        	    currentAggregator.add(connection, topic, bytes);
+        	  else
+        	    publish(pool, connection, topic, bytes);
           }
           else
           {
@@ -259,17 +842,19 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
         }
         else
         {
-          //update shadow          
-          String deviceId = deviceIdFieldName;
-          if (deviceId != null & Validator.isNotBlank(deviceId))
+          //update shadow of the thing named by the record
+          AwsIoTHubDeviceCache devices = deviceCache;
+          AwsIoTHubShadowCoalescer coalescer = shadowCoalescer;
+          String deviceId = (devices != null) ? devices.getThingName(bytes, 0, bytes.length) : null;
+          if (deviceId != null & Validator.isNotBlank(deviceId) && coalescer != null)
           {     
-        	//geIoTDevice.delete(); // delete shadow
-        	LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": updating the device state");
-            geIoTDevice.update(iotMessage, 10000); // update device state
+            if (currentDiagnostics != null)
+              currentDiagnostics.capture("out", deviceId, bytes, 0, bytes.length);
+            coalescer.offer(deviceId, bytes); // update device state, keeping only the latest pending state per thing
           }
           else
           {
-            LOGGER.warn("FAILED_TO_SEND_INVALID_DEVICE_ID", deviceIdFieldName);
+            LOGGER.warn("FAILED_TO_SEND_INVALID_DEVICE_ID", Validator.isNotBlank(thingNameField) ? thingNameField : deviceIdFieldName);
           }
         }
       }
@@ -282,29 +867,218 @@ public class AwsIoTHubOutboundTransport extends OutboundTransportBase
       }    
   }
 
+  /**
+   * Sends one shadow update. The device completes it through the message callbacks, so the
+   * calling thread does not wait for the acknowledgement.
+   */
+  private void updateShadow(String thingName, AWSIotMessage update) throws Exception
+  {
+    AwsIoTHubDeviceCache devices = deviceCache;
+    if (devices == null)
+      throw new IllegalStateException(LOGGER.translate("SHADOW_DEVICES_UNAVAILABLE"));
+    devices.get(thingName).update(update, shadowUpdateTimeoutMillis);
+    metrics.sent(update.getPayload().length);
+  }
+
+  /**
+   * Publishes a payload within the in-flight window. A full window or a client error only costs
+   * this record; it does not take the transport down.
+   */
+  private void publish(AwsIoTHubConnectionPool pool, int connection, String topic, byte[] payload)
+  {
+    AwsIoTHubMqttClient client = pool.get(connection);
+    AwsIoTHubPublishWindow window = publishWindow;
+    AwsIoTHubSpillQueue spill = spillQueue;
+    if (spill != null)
+    {
+      // while connected the window applies backpressure as usual; records only go to disk when the
+      // client is down or no slot frees up in time
+      if (window != null && client.isConnected() && window.awaitSlot())
+      {
+        if (spill.isEmpty())
+        {
+          send(client, window, topic, payload);
+          return;
+        }
+        // nothing overtakes records already spilled, so replay stays in order; the slot only held
+        // this record back while the window was full
+        window.release();
+      }
+      spill.append(connection, topic, payload);
+      return;
+    }
+    if (window == null || !window.acquire())
+      return;
+    send(client, window, topic, payload);
+  }
+
+  /**
+   * Publishes a spilled record on the connection it was spilled from.
+   *
+   * @return <code>false</code> if it cannot be published yet
+   */
+  private boolean replay(AwsIoTHubSpillQueue.Record record)
+  {
+    AwsIoTHubConnectionPool pool = connectionPool;
+    AwsIoTHubPublishWindow window = publishWindow;
+    if (pool == null || window == null)
+      return false;
+    AwsIoTHubMqttClient client = pool.get(record.connection % pool.size());
+    if (!client.isConnected() || !window.awaitSlot())
+      return false;
+    send(client, window, record.topic, record.payload);
+    return true;
+  }
+
+  private void send(AwsIoTHubMqttClient client, AwsIoTHubPublishWindow window, String topic, byte[] payload)
+  {
+    // compress after taking the slot so shed records cost nothing
+    AwsIoTHubCodecPool codecs = codecPool;
+    if (codecs != null)
+    {
+      AwsIoTHubCodec codec = codecs.acquire();
+      try
+      {
+        payload = codec.compress(payloadCompression, payload, 0, payload.length);
+      }
+      finally
+      {
+        codecs.release(codec);
+      }
+    }
+    AWSIoTPublishListener publishMessage = new AWSIoTPublishListener(client, window, topic, qos, payload);
+    try
+    {
+      client.publish(publishMessage, publishTimeoutMillis);
+      metrics.sent(payload.length);
+    }
+    catch (Exception e)
+    {
+      window.failed();
+      metrics.failed();
+      LOGGER.warn("PUBLISH_ERROR", e);
+    }
+  }
+
+  @Override
+  public String getStatusDetails()
+  {
+    AwsIoTHubConnectionSupervisor currentSupervisor = supervisor;
+    String connectionStatus = (currentSupervisor != null) ? currentSupervisor.getStatus() : null;
+    String prefix = (connectionStatus != null) ? connectionStatus + " " : "";
+    AwsIoTHubShadowCoalescer coalescer = shadowCoalescer;
+    if (coalescer != null)
+    {
+      String details = prefix + LOGGER.translate("SHADOW_COALESCER_STATUS", coalescer.getPendingCount(), coalescer.getCoalescedCount(), coalescer.getSuppressedCount());
+      AwsIoTHubShadowUpdater updater = shadowUpdater;
+      if (updater != null)
+        details += " " + updater.getStatus();
+      AwsIoTHubShadowDelta delta = shadowDelta;
+      if (delta != null)
+        details += " " + LOGGER.translate("SHADOW_DELTA_STATUS", delta.getBytesOut(), delta.getBytesIn(), delta.getUnchangedCount());
+      return details + " " + metrics.getOutboundSummary();
+    }
+    AwsIoTHubPublishWindow window = publishWindow;
+    if (window == null)
+      return super.getStatusDetails();
+    String details = prefix + LOGGER.translate("PUBLISH_WINDOW_STATUS", window.getInFlight(), window.getCapacity(), window.getShedCount(), window.getRetriedCount(), window.getTimedOutCount(), window.getFailedCount());
+    AwsIoTHubTopicTemplate template = topicTemplate;
+    if (template != null && template.getUnresolvedCount() > 0)
+      details += " " + LOGGER.translate("TOPIC_UNRESOLVED_STATUS", template.getUnresolvedCount());
+    AwsIoTHubSpillQueue spill = spillQueue;
+    if (spill != null)
+      details += " " + spill.getStatus();
+    return details + " " + metrics.getOutboundSummary();
+  }
+
+  /**
+   * @return the traffic counters of this transport, also registered as a JMX MBean while connected
+   */
+  public AwsIoTHubMetricsMBean getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * @return the sampled payload capture of this transport, or <code>null</code> before it connects
+   */
+  public AwsIoTHubDiagnosticsMBean getDiagnostics()
+  {
+    return diagnostics;
+  }
+
+  /**
+   * @return the publishes and shadow updates waiting for an acknowledgement
+   */
+  private int getQueueDepth()
+  {
+    AwsIoTHubPublishWindow window = publishWindow;
+    AwsIoTHubShadowUpdater updater = shadowUpdater;
+    AwsIoTHubSpillQueue spill = spillQueue;
+    long spilled = (spill != null) ? spill.getPending() : 0;
+    return ((window != null) ? window.getInFlight() : 0) + ((updater != null) ? updater.getOutstanding() + updater.getWaiting() : 0) + (int) Math.min(Integer.MAX_VALUE, spilled);
+  }
+
   /**
    * AWSIoTPublishListener class extends {@link AWSIotMessage} to publish messages to a
    * topic.
    */
   private final class AWSIoTPublishListener extends AWSIotMessage {
 
-	    public AWSIoTPublishListener(String topic, AWSIotQos qos, byte [] payload) {
+	    private final AwsIoTHubMqttClient    client;
+	    private final AwsIoTHubPublishWindow window;
+	    private final long                   timeout;
+	    private int                          attempts = 1;
+	    private long                         sentNanos = System.nanoTime();
+
+	    public AWSIoTPublishListener(AwsIoTHubMqttClient client, AwsIoTHubPublishWindow window, String topic, AWSIotQos qos, byte [] payload) {
 	        super(topic, qos, payload);
+	        this.client = client;
+	        this.window = window;
+	        this.timeout = publishTimeoutMillis;
 	    }
 
 	    @Override
 	    public void onSuccess() {	        
-	        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId + ": publish success for: " + this.topic + " >>> " + getStringPayload());	        
+	        if (window != null)
+	          window.succeeded();
+	        metrics.acknowledged(System.nanoTime() - sentNanos);
+	        AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+	        if (LOGGER.isDebugEnabled() && currentDiagnostics != null && currentDiagnostics.allowLog())
+	          LOGGER.debug("PUBLISH_SUCCEEDED", this.topic, getPayload().length);
 	    }
 
 	    @Override
 	    public void onFailure() {	        
-	        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId +": publish failed for: " + this.topic + " >>> " + getStringPayload());
+	        if (window != null)
+	          window.failed();
+	        metrics.failed();
+	        AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+	        if (currentDiagnostics != null && currentDiagnostics.allowLog())
+	          LOGGER.warn("PUBLISH_FAILED", this.topic);
 	    }
 
 	    @Override
 	    public void onTimeout() {	        
-	        LOGGER.info(System.currentTimeMillis() +  ": ClientId: " + clientId +": publish timeout for: " + this.topic + " >>> " + getStringPayload());
+	        metrics.timedOut();
+	        AwsIoTHubDiagnostics currentDiagnostics = diagnostics;
+	        if (LOGGER.isDebugEnabled() && currentDiagnostics != null && currentDiagnostics.allowLog())
+	          LOGGER.debug("PUBLISH_TIMED_OUT", this.topic, attempts);
+	        if (window != null && window.timedOut(attempts))
+	        {
+	          // retry within the slot this publish already holds
+	          attempts++;
+	          sentNanos = System.nanoTime();
+	          try
+	          {
+	            client.publish(this, timeout);
+	          }
+	          catch (Exception e)
+	          {
+	            window.failed();
+	            LOGGER.warn("PUBLISH_ERROR", e);
+	          }
+	        }
 	    }
 
 	}
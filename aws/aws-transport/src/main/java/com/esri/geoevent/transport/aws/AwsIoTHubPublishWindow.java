@@ -0,0 +1,180 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AwsIoTHubPublishWindow class bounds the number of publishes that have been handed to the MQTT
+ * client but not yet acknowledged. A slot is taken before each publish and given back by the
+ * publish callbacks, so a slow broker applies backpressure to the output instead of piling up
+ * messages inside the client.
+ */
+public class AwsIoTHubPublishWindow
+{
+  public enum OverflowPolicy
+  {
+    BLOCK,
+    SHED
+  };
+
+  private final Semaphore      slots;
+  private final int            capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long           blockTimeoutMillis;
+  private final int            maxRetries;
+  private final AtomicLong     shed      = new AtomicLong();
+  private final AtomicLong     retried   = new AtomicLong();
+  private final AtomicLong     failed    = new AtomicLong();
+  private final AtomicLong     timedOut  = new AtomicLong();
+
+  /**
+   * @param blockTimeoutMillis how long the BLOCK policy waits for a slot before shedding the record
+   * @param maxRetries how many times a timed out publish is sent again before it is given up
+   */
+  public AwsIoTHubPublishWindow(int capacity, OverflowPolicy overflowPolicy, long blockTimeoutMillis, int maxRetries)
+  {
+    this.capacity = Math.max(1, capacity);
+    this.slots = new Semaphore(this.capacity);
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+    this.maxRetries = Math.max(0, maxRetries);
+  }
+
+  /**
+   * Takes a slot for a new publish.
+   *
+   * @return <code>false</code> if the window is full and the record has been shed
+   */
+  public boolean acquire()
+  {
+    boolean acquired = awaitSlot();
+    if (!acquired)
+      shed.incrementAndGet();
+    return acquired;
+  }
+
+  /**
+   * Takes a slot like {@link #acquire()}, waiting as long as the overflow policy allows, but
+   * without counting a shed record when none frees up; for callers that keep the record elsewhere.
+   */
+  public boolean awaitSlot()
+  {
+    boolean acquired;
+    if (overflowPolicy == OverflowPolicy.SHED)
+    {
+      acquired = slots.tryAcquire();
+    }
+    else
+    {
+      try
+      {
+        acquired = slots.tryAcquire(blockTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        acquired = false;
+      }
+    }
+    return acquired;
+  }
+
+  /**
+   * Takes a slot if one is free right away, without counting a shed record when none is.
+   */
+  public boolean tryAcquire()
+  {
+    return slots.tryAcquire();
+  }
+
+  /**
+   * Gives back a slot that was taken but not used for a publish.
+   */
+  public void release()
+  {
+    slots.release();
+  }
+
+  public void succeeded()
+  {
+    slots.release();
+  }
+
+  public void failed()
+  {
+    failed.incrementAndGet();
+    slots.release();
+  }
+
+  /**
+   * Called when a publish timed out after <code>attempts</code> tries.
+   *
+   * @return <code>true</code> if the publish should be sent again, keeping its slot
+   */
+  public boolean timedOut(int attempts)
+  {
+    if (attempts <= maxRetries)
+    {
+      retried.incrementAndGet();
+      return true;
+    }
+    timedOut.incrementAndGet();
+    slots.release();
+    return false;
+  }
+
+  public int getInFlight()
+  {
+    return capacity - slots.availablePermits();
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public long getShedCount()
+  {
+    return shed.get();
+  }
+
+  public long getRetriedCount()
+  {
+    return retried.get();
+  }
+
+  public long getFailedCount()
+  {
+    return failed.get();
+  }
+
+  public long getTimedOutCount()
+  {
+    return timedOut.get();
+  }
+}
@@ -0,0 +1,192 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubShadowCoalescer class sits in front of the device shadow updates and keeps only the
+ * most recent pending state of each thing. Pending states are written on a fixed interval, so the
+ * shadow write rate is bounded by the number of things times the flush rate rather than by the
+ * input rate. A state identical to the last one written for the thing can be suppressed as well.
+ */
+public class AwsIoTHubShadowCoalescer
+{
+  private static final BundleLogger              LOGGER     = BundleLoggerFactory.getLogger(AwsIoTHubShadowCoalescer.class);
+
+  public interface Updater
+  {
+    void update(String thingName, byte[] state);
+  }
+
+  private final Updater                          updater;
+  private final long                             flushIntervalMillis;
+  private final boolean                          suppressUnchanged;
+  private final ConcurrentHashMap<String, byte[]> pending   = new ConcurrentHashMap<String, byte[]>();
+  private final Map<String, byte[]>              lastWritten;
+  private final ScheduledExecutorService         flusher;
+  private final AtomicLong                       coalesced  = new AtomicLong();
+  private final AtomicLong                       suppressed = new AtomicLong();
+
+  /**
+   * @param flushIntervalMillis how often pending states are written; 0 writes every state right
+   *          away
+   * @param maxThings how many last written states are remembered to suppress unchanged ones
+   */
+  public AwsIoTHubShadowCoalescer(String name, long flushIntervalMillis, boolean suppressUnchanged, final int maxThings, Updater updater)
+  {
+    this.updater = updater;
+    this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+    this.suppressUnchanged = suppressUnchanged;
+    this.lastWritten = new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+        {
+          return size() > Math.max(1, maxThings);
+        }
+      };
+    this.flusher = (this.flushIntervalMillis > 0) ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, name + "-shadow-flusher");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+  }
+
+  public void start()
+  {
+    if (flusher != null)
+      flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop()
+  {
+    if (flusher != null)
+      flusher.shutdownNow();
+    flush();
+  }
+
+  public void offer(String thingName, byte[] state)
+  {
+    if (flusher == null)
+    {
+      write(thingName, state);
+      return;
+    }
+    if (pending.put(thingName, state) != null)
+      coalesced.incrementAndGet();
+  }
+
+  /**
+   * Forgets a state recorded as last written whose update failed, so the same state is not
+   * suppressed when it is offered again.
+   */
+  public void failed(String thingName, byte[] state)
+  {
+    if (suppressUnchanged)
+    {
+      synchronized (lastWritten)
+      {
+        lastWritten.remove(thingName, state);
+      }
+    }
+  }
+
+  public int getPendingCount()
+  {
+    return pending.size();
+  }
+
+  public long getCoalescedCount()
+  {
+    return coalesced.get();
+  }
+
+  public long getSuppressedCount()
+  {
+    return suppressed.get();
+  }
+
+  private void flush()
+  {
+    Iterator<Map.Entry<String, byte[]>> states = pending.entrySet().iterator();
+    while (states.hasNext())
+    {
+      Map.Entry<String, byte[]> state = states.next();
+      // remove only the state that is about to be written; a newer one waits for the next flush
+      if (pending.remove(state.getKey(), state.getValue()))
+      {
+        try
+        {
+          write(state.getKey(), state.getValue());
+        }
+        catch (Exception e)
+        {
+          LOGGER.error("UNEXPECTED_ERROR", e);
+        }
+      }
+    }
+  }
+
+  private void write(String thingName, byte[] state)
+  {
+    if (suppressUnchanged)
+    {
+      synchronized (lastWritten)
+      {
+        if (Arrays.equals(lastWritten.get(thingName), state))
+        {
+          suppressed.incrementAndGet();
+          return;
+        }
+        // recorded before the update so a repeat offered meanwhile is suppressed; a failed update
+        // takes it out again through failed()
+        lastWritten.put(thingName, state);
+      }
+    }
+    try
+    {
+      updater.update(thingName, state);
+    }
+    catch (RuntimeException e)
+    {
+      failed(thingName, state);
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AwsIoTHubShadowDelta class trims shadow update documents down to the <code>reported</code>
+ * fields that changed since the last update the shadow acknowledged for the same thing. A shadow
+ * update merges into the stored document, so sending only the changed top level fields leaves the
+ * shadow in the same state as sending the full record.
+ * <p>
+ * Fields are compared on their raw JSON bytes; a nested object is sent whole when any part of it
+ * changed. Anything outside <code>state.reported</code> is passed through untouched, and a record
+ * without a <code>state.reported</code> object is sent as is.
+ */
+public class AwsIoTHubShadowDelta implements AwsIoTHubShadowUpdater.Encoder
+{
+  private static final byte[][]                       REPORTED_PATH = AwsIoTHubJsonScanner.compilePath("state.reported");
+  private static final byte[][]                       STATE_PATH    = AwsIoTHubJsonScanner.compilePath("state");
+
+  // last acknowledged reported fields, by thing; a thing that falls out is simply sent in full
+  private final Map<String, Map<String, byte[]>>      acknowledged;
+  private final int[]                                 range         = new int[4];
+  private final ByteArrayOutputStream                 out           = new ByteArrayOutputStream(1024);
+  private long                                        bytesIn       = 0;
+  private long                                        bytesOut      = 0;
+  private long                                        unchanged     = 0;
+
+  public AwsIoTHubShadowDelta(final int maxThings)
+  {
+    this.acknowledged = new LinkedHashMap<String, Map<String, byte[]>>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest)
+        {
+          return size() > Math.max(1, maxThings);
+        }
+      };
+  }
+
+  @Override
+  public synchronized byte[] encode(String thingName, byte[] state)
+  {
+    bytesIn += state.length;
+    Map<String, byte[]> last = acknowledged.get(thingName);
+    if (last == null || !AwsIoTHubJsonScanner.findField(state, 0, state.length, REPORTED_PATH, range))
+    {
+      bytesOut += state.length;
+      return state;
+    }
+    int reportedStart = range[AwsIoTHubJsonScanner.VALUE_START];
+    int reportedEnd = range[AwsIoTHubJsonScanner.VALUE_END];
+    int position = AwsIoTHubJsonScanner.enterObject(state, reportedStart, reportedEnd);
+    if (position < 0)
+    {
+      bytesOut += state.length;
+      return state;
+    }
+
+    out.reset();
+    out.write(state, 0, reportedStart);
+    out.write('{');
+    int changed = 0;
+    while ((position = AwsIoTHubJsonScanner.nextMember(state, position, reportedEnd, range)) >= 0)
+    {
+      byte[] previous = last.get(name(state, range));
+      int valueStart = range[AwsIoTHubJsonScanner.VALUE_START];
+      int valueEnd = range[AwsIoTHubJsonScanner.VALUE_END];
+      if (previous != null && AwsIoTHubJsonScanner.regionEquals(state, valueStart, valueEnd, previous))
+        continue;
+      if (changed++ > 0)
+        out.write(',');
+      // the member from its opening quote to the end of its value
+      out.write(state, range[AwsIoTHubJsonScanner.NAME_START] - 1, valueEnd - range[AwsIoTHubJsonScanner.NAME_START] + 1);
+    }
+    if (changed == 0 && reportedIsWholeUpdate(state))
+    {
+      unchanged++;
+      return null;
+    }
+    out.write('}');
+    out.write(state, reportedEnd, state.length - reportedEnd);
+    byte[] delta = out.toByteArray();
+    bytesOut += delta.length;
+    return delta;
+  }
+
+  @Override
+  public synchronized void acknowledged(String thingName, byte[] payload)
+  {
+    if (!AwsIoTHubJsonScanner.findField(payload, 0, payload.length, REPORTED_PATH, range))
+    {
+      acknowledged.remove(thingName);
+      return;
+    }
+    int reportedEnd = range[AwsIoTHubJsonScanner.VALUE_END];
+    int position = AwsIoTHubJsonScanner.enterObject(payload, range[AwsIoTHubJsonScanner.VALUE_START], reportedEnd);
+    if (position < 0)
+    {
+      acknowledged.remove(thingName);
+      return;
+    }
+    Map<String, byte[]> last = acknowledged.get(thingName);
+    if (last == null)
+    {
+      last = new HashMap<String, byte[]>();
+      acknowledged.put(thingName, last);
+    }
+    while ((position = AwsIoTHubJsonScanner.nextMember(payload, position, reportedEnd, range)) >= 0)
+    {
+      String name = name(payload, range);
+      if (payload[range[AwsIoTHubJsonScanner.VALUE_START]] == 'n')
+        last.remove(name); // null deletes the field from the shadow
+      else
+        last.put(name, Arrays.copyOfRange(payload, range[AwsIoTHubJsonScanner.VALUE_START], range[AwsIoTHubJsonScanner.VALUE_END]));
+    }
+  }
+
+  public synchronized long getBytesIn()
+  {
+    return bytesIn;
+  }
+
+  public synchronized long getBytesOut()
+  {
+    return bytesOut;
+  }
+
+  public synchronized long getUnchangedCount()
+  {
+    return unchanged;
+  }
+
+  private static String name(byte[] bytes, int[] range)
+  {
+    return new String(bytes, range[AwsIoTHubJsonScanner.NAME_START], range[AwsIoTHubJsonScanner.NAME_END] - range[AwsIoTHubJsonScanner.NAME_START], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return <code>true</code> if the document carries nothing besides <code>state.reported</code>,
+   *         so an update with no changed reported fields has nothing left to say
+   */
+  private boolean reportedIsWholeUpdate(byte[] state)
+  {
+    int[] member = new int[4];
+    int members = 0;
+    int position = AwsIoTHubJsonScanner.enterObject(state, 0, state.length);
+    while (position >= 0 && (position = AwsIoTHubJsonScanner.nextMember(state, position, state.length, member)) >= 0)
+      members++;
+    if (members != 1 || !AwsIoTHubJsonScanner.findField(state, 0, state.length, STATE_PATH, member))
+      return false;
+    members = 0;
+    int stateEnd = member[AwsIoTHubJsonScanner.VALUE_END];
+    position = AwsIoTHubJsonScanner.enterObject(state, member[AwsIoTHubJsonScanner.VALUE_START], stateEnd);
+    while (position >= 0 && (position = AwsIoTHubJsonScanner.nextMember(state, position, stateEnd, member)) >= 0)
+      members++;
+    return members == 1;
+  }
+}
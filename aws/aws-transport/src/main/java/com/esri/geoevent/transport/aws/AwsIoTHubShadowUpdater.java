@@ -0,0 +1,299 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubShadowUpdater class issues device shadow updates asynchronously, with a bounded number
+ * of updates outstanding. Each thing has at most one update in flight; a state submitted while
+ * the previous one is in flight replaces any state still waiting and is sent once the previous
+ * update completes. An older state therefore never reaches the shadow after a newer one, and a
+ * failed update is only retried when no newer state is waiting to replace it.
+ */
+public class AwsIoTHubShadowUpdater
+{
+  private static final BundleLogger LOGGER = BundleLoggerFactory.getLogger(AwsIoTHubShadowUpdater.class);
+
+  public interface Sender
+  {
+    void send(String thingName, AWSIotMessage update) throws Exception;
+  }
+
+  /**
+   * Turns a state into the payload actually sent, at the moment it is sent. Returning
+   * <code>null</code> completes the update without sending anything.
+   */
+  public interface Encoder
+  {
+    byte[] encode(String thingName, byte[] state);
+
+    void acknowledged(String thingName, byte[] payload);
+  }
+
+  /**
+   * Learns about states that failed for good: not retried and not replaced by a newer state.
+   */
+  public interface FailureListener
+  {
+    void failed(String thingName, byte[] state);
+  }
+
+  private static final class Slot
+  {
+    final String thingName;
+    byte[]       inFlight;
+    byte[]       next;
+    int          attempts;
+    boolean      waiting;
+
+    Slot(String thingName)
+    {
+      this.thingName = thingName;
+    }
+  }
+
+  private final Sender              sender;
+  private final Encoder             encoder;
+  private volatile FailureListener  failureListener;
+  private final String              topic;
+  private final int                 maxOutstanding;
+  private final int                 maxRetries;
+  private final Map<String, Slot>   slots      = new HashMap<String, Slot>();
+  private final ArrayDeque<Slot>    waiting    = new ArrayDeque<Slot>();
+  private int                       outstanding = 0;
+  private long                      completed  = 0;
+  private long                      superseded = 0;
+  private long                      retried    = 0;
+  private long                      failed     = 0;
+
+  public AwsIoTHubShadowUpdater(String topic, int maxOutstanding, int maxRetries, Sender sender)
+  {
+    this(topic, maxOutstanding, maxRetries, sender, null);
+  }
+
+  public AwsIoTHubShadowUpdater(String topic, int maxOutstanding, int maxRetries, Sender sender, Encoder encoder)
+  {
+    this.topic = topic;
+    this.maxOutstanding = Math.max(1, maxOutstanding);
+    this.maxRetries = Math.max(0, maxRetries);
+    this.sender = sender;
+    this.encoder = encoder;
+  }
+
+  public void submit(String thingName, byte[] state)
+  {
+    Slot ready = null;
+    synchronized (this)
+    {
+      Slot slot = slots.get(thingName);
+      if (slot == null)
+      {
+        slot = new Slot(thingName);
+        slots.put(thingName, slot);
+      }
+      if (slot.next != null)
+        superseded++;
+      slot.next = state;
+      slot.attempts = 0;
+      if (slot.inFlight == null && !slot.waiting)
+        ready = schedule(slot);
+    }
+    if (ready != null)
+    {
+      ArrayDeque<Slot> sends = new ArrayDeque<Slot>(2);
+      sends.add(ready);
+      send(sends);
+    }
+  }
+
+  public void setFailureListener(FailureListener failureListener)
+  {
+    this.failureListener = failureListener;
+  }
+
+  public synchronized void stop()
+  {
+    slots.clear();
+    waiting.clear();
+  }
+
+  public synchronized int getOutstanding()
+  {
+    return outstanding;
+  }
+
+  public synchronized int getWaiting()
+  {
+    return waiting.size();
+  }
+
+  public synchronized String getStatus()
+  {
+    return LOGGER.translate("SHADOW_UPDATER_STATUS", outstanding, maxOutstanding, waiting.size(), completed, superseded, retried, failed);
+  }
+
+  /**
+   * Puts the next state of a slot in flight if there is room, otherwise lines the slot up for the
+   * next free place. Must be called holding the lock.
+   */
+  private Slot schedule(Slot slot)
+  {
+    if (outstanding < maxOutstanding)
+    {
+      slot.inFlight = slot.next;
+      slot.next = null;
+      outstanding++;
+      return slot;
+    }
+    slot.waiting = true;
+    waiting.add(slot);
+    return null;
+  }
+
+  /**
+   * Sends the slots that were put in flight. Updates that complete without going out (nothing to
+   * send, or the send failed) free their place right here, which may line up more slots; they
+   * are handled in this loop rather than by recursion.
+   */
+  private void send(ArrayDeque<Slot> sends)
+  {
+    Slot slot;
+    while ((slot = sends.poll()) != null)
+    {
+      try
+      {
+        byte[] payload = (encoder != null) ? encoder.encode(slot.thingName, slot.inFlight) : slot.inFlight;
+        if (payload == null)
+        {
+          finish(slot, true, null, sends);
+          continue;
+        }
+        sender.send(slot.thingName, new ShadowUpdate(topic, slot, payload));
+      }
+      catch (Exception e)
+      {
+        LOGGER.warn("SHADOW_UPDATE_ERROR", e);
+        finish(slot, false, null, sends);
+      }
+    }
+  }
+
+  private void complete(Slot slot, boolean success, byte[] payload)
+  {
+    ArrayDeque<Slot> sends = new ArrayDeque<Slot>(2);
+    finish(slot, success, payload, sends);
+    send(sends);
+  }
+
+  private void finish(Slot slot, boolean success, byte[] payload, ArrayDeque<Slot> ready)
+  {
+    if (success && payload != null && encoder != null)
+      encoder.acknowledged(slot.thingName, payload);
+    byte[] lost = null;
+    synchronized (this)
+    {
+      outstanding--;
+      byte[] done = slot.inFlight;
+      slot.inFlight = null;
+      if (success)
+      {
+        completed++;
+      }
+      else if (slot.next == null && slot.attempts < maxRetries && slots.get(slot.thingName) == slot)
+      {
+        slot.attempts++;
+        slot.next = done;
+        retried++;
+      }
+      else
+      {
+        failed++;
+        lost = done;
+      }
+
+      if (slot.next != null && !slot.waiting)
+      {
+        Slot next = schedule(slot);
+        if (next != null)
+          ready.add(next);
+      }
+      else if (slot.next == null && !slot.waiting && slots.get(slot.thingName) == slot)
+      {
+        slots.remove(slot.thingName);
+      }
+
+      while (outstanding < maxOutstanding && !waiting.isEmpty())
+      {
+        Slot next = waiting.poll();
+        next.waiting = false;
+        if (next.next != null && next.inFlight == null)
+          ready.add(schedule(next));
+      }
+    }
+    FailureListener listener = failureListener;
+    if (lost != null && listener != null)
+      listener.failed(slot.thingName, lost);
+  }
+
+  /**
+   * ShadowUpdate class extends {@link AWSIotMessage} to learn when a shadow update completes.
+   */
+  private final class ShadowUpdate extends AWSIotMessage
+  {
+    private final Slot slot;
+
+    ShadowUpdate(String topic, Slot slot, byte[] state)
+    {
+      super(topic, AWSIotQos.QOS0, state);
+      this.slot = slot;
+    }
+
+    @Override
+    public void onSuccess()
+    {
+      complete(slot, true, getPayload());
+    }
+
+    @Override
+    public void onFailure()
+    {
+      complete(slot, false, null);
+    }
+
+    @Override
+    public void onTimeout()
+    {
+      complete(slot, false, null);
+    }
+  }
+}
@@ -0,0 +1,517 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubSpillQueue class stores outbound records on disk while they cannot be published, and
+ * replays them in order once they can, at a bounded rate after an outage. Records are appended to
+ * memory-mapped segment files of a fixed size; when the queue would outgrow its disk budget the
+ * oldest segment is dropped. Each segment keeps its read position in its header, so records that were spilled but
+ * not replayed are picked up again by the next start. A queue holds a lock on its directory for as
+ * long as it is open, so two transports never share one.
+ */
+public class AwsIoTHubSpillQueue
+{
+  private static final BundleLogger LOGGER        = BundleLoggerFactory.getLogger(AwsIoTHubSpillQueue.class);
+
+  private static final String       SUFFIX        = ".spill";
+  private static final String       LOCK_FILE     = "spill.lock";
+  private static final int          MAGIC         = 0x53504c31;
+  // read position and magic
+  private static final int          HEADER        = 8;
+  // record length, connection and topic length
+  private static final int          RECORD_HEADER = 8;
+  private static final int          MIN_SEGMENT   = 64 * 1024;
+  private static final int          MAX_SEGMENT   = 16 * 1024 * 1024;
+
+  public interface Replayer
+  {
+    /**
+     * @return <code>false</code> if the record could not be handed off now and has to be offered again
+     */
+    boolean replay(Record record);
+  }
+
+  /**
+   * Record class is one spilled record, as returned by {@link AwsIoTHubSpillQueue#peek()}.
+   */
+  public static final class Record
+  {
+    public final int     connection;
+    public final String  topic;
+    public final byte[]  payload;
+    private final Segment segment;
+    private final int     position;
+
+    private Record(int connection, String topic, byte[] payload, Segment segment, int position)
+    {
+      this.connection = connection;
+      this.topic = topic;
+      this.payload = payload;
+      this.segment = segment;
+      this.position = position;
+    }
+  }
+
+  private static final class Segment
+  {
+    final File             file;
+    final MappedByteBuffer buffer;
+    int                    readPosition  = HEADER;
+    int                    writePosition = HEADER;
+    int                    remaining     = 0;
+
+    Segment(File file, int size) throws IOException
+    {
+      this.file = file;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel())
+      {
+        // the mapping stays valid after the channel is closed
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+  }
+
+  private final File                 directory;
+  private final FileChannel          lockChannel;
+  private final FileLock             lock;
+  private final int                  segmentSize;
+  private final int                  maxSegments;
+  private final ArrayDeque<Segment>  segments   = new ArrayDeque<Segment>();
+  private long                       nextSequence = 0;
+  private volatile long              pending    = 0;
+  private long                       spilled    = 0;
+  private long                       replayed   = 0;
+  private long                       dropped    = 0;
+  private volatile boolean           running    = false;
+  private volatile BooleanSupplier   ready      = null;
+  // set by an outage; a backlog that built up while connected is replayed unpaced
+  private volatile boolean           paced      = false;
+  private Thread                     drainer    = null;
+
+  /**
+   * Opens the queue in <code>directory</code>, recovering the records an earlier run left behind.
+   *
+   * @param maxBytes disk budget of the queue; a segment is a quarter of it, between 64 KB and 16 MB
+   */
+  public AwsIoTHubSpillQueue(File directory, long maxBytes) throws IOException
+  {
+    this.directory = directory;
+    this.segmentSize = (int) Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, maxBytes / 4));
+    this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException(LOGGER.translate("SPILL_DIRECTORY_UNAVAILABLE", directory.getAbsolutePath()));
+    this.lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+    FileLock directoryLock = null;
+    try
+    {
+      // null when another process holds the lock, an exception when another queue of this one does
+      directoryLock = lockChannel.tryLock();
+    }
+    catch (OverlappingFileLockException e)
+    {
+      directoryLock = null;
+    }
+    this.lock = directoryLock;
+    if (lock == null)
+    {
+      lockChannel.close();
+      throw new IOException(LOGGER.translate("SPILL_DIRECTORY_LOCKED", directory.getAbsolutePath()));
+    }
+    try
+    {
+      recover();
+    }
+    catch (IOException | RuntimeException e)
+    {
+      unlock();
+      throw e;
+    }
+    // records left by an earlier run are a backlog of an outage
+    paced = pending > 0;
+  }
+
+  /**
+   * Starts replaying the queued records on a thread of its own, only while <code>ready</code>
+   * holds. A backlog of an outage (records spilled while <code>ready</code> did not hold, or left by
+   * an earlier run) is paced to at most <code>ratePerSecond</code> records, so a reconnect does not
+   * flood the broker; records spilled while ready are replayed as fast as the replayer takes them.
+   */
+  public synchronized void start(String name, Replayer replayer, BooleanSupplier ready, int ratePerSecond)
+  {
+    if (running)
+      return;
+    running = true;
+    this.ready = ready;
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerSecond);
+    drainer = new Thread(() -> drain(replayer, ready, intervalNanos), name + "-spill");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Stops the replay and flushes the segments; the records still queued are kept for the next start.
+   */
+  public void stop()
+  {
+    Thread currentDrainer;
+    synchronized (this)
+    {
+      running = false;
+      currentDrainer = drainer;
+      drainer = null;
+      notifyAll();
+    }
+    if (currentDrainer != null)
+    {
+      currentDrainer.interrupt();
+      try
+      {
+        currentDrainer.join(5000);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this)
+    {
+      for (Segment segment : segments)
+        segment.buffer.force();
+      segments.clear();
+    }
+    unlock();
+  }
+
+  /**
+   * Appends a record, dropping the oldest segment when a new one would exceed the disk budget.
+   *
+   * @return <code>false</code> if the record is larger than a segment and was dropped
+   */
+  public synchronized boolean append(int connection, String topic, byte[] payload)
+  {
+    byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+    int length = RECORD_HEADER + topicBytes.length + payload.length;
+    if (length > segmentSize - HEADER || topicBytes.length > Short.MAX_VALUE)
+    {
+      dropped++;
+      return false;
+    }
+    BooleanSupplier currentReady = ready;
+    if (currentReady == null || !currentReady.getAsBoolean())
+      paced = true;
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writePosition + length > segmentSize)
+    {
+      try
+      {
+        tail = roll();
+      }
+      catch (IOException e)
+      {
+        LOGGER.error("SPILL_WRITE_FAILED", e);
+        dropped++;
+        return false;
+      }
+    }
+    MappedByteBuffer buffer = tail.buffer;
+    int position = tail.writePosition;
+    // the length goes in last, so a record cut short by a crash reads as the end of the segment, and
+    // the terminator after it hides whatever an earlier run left there
+    int end = position + length;
+    if (end + 4 <= segmentSize)
+      buffer.putInt(end, 0);
+    buffer.putShort(position + 4, (short) connection);
+    buffer.putShort(position + 6, (short) topicBytes.length);
+    for (int i = 0; i < topicBytes.length; i++)
+      buffer.put(position + RECORD_HEADER + i, topicBytes[i]);
+    int payloadPosition = position + RECORD_HEADER + topicBytes.length;
+    for (int i = 0; i < payload.length; i++)
+      buffer.put(payloadPosition + i, payload[i]);
+    buffer.putInt(position, length);
+    tail.writePosition = end;
+    tail.remaining++;
+    pending++;
+    spilled++;
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * @return the oldest queued record, or <code>null</code> if there is none; it stays queued until
+   *         it is removed
+   */
+  public synchronized Record peek()
+  {
+    while (true)
+    {
+      Segment head = segments.peekFirst();
+      if (head == null)
+        return null;
+      if (head.readPosition < head.writePosition)
+        return read(head, head.readPosition);
+      if (head == segments.peekLast())
+        return null;
+      delete(segments.pollFirst());
+    }
+  }
+
+  /**
+   * Removes a record returned by {@link #peek()}, unless it has been dropped in the meantime.
+   */
+  public synchronized void remove(Record record)
+  {
+    Segment head = segments.peekFirst();
+    if (head != record.segment || head.readPosition != record.position)
+      return;
+    head.readPosition += head.buffer.getInt(record.position);
+    head.buffer.putInt(0, head.readPosition);
+    head.remaining--;
+    pending--;
+    replayed++;
+  }
+
+  public boolean isEmpty()
+  {
+    return pending == 0;
+  }
+
+  public long getPending()
+  {
+    return pending;
+  }
+
+  public synchronized int getSegmentCount()
+  {
+    return segments.size();
+  }
+
+  public synchronized String getStatus()
+  {
+    return LOGGER.translate("SPILL_STATUS", pending, segments.size(), maxSegments, spilled, replayed, dropped);
+  }
+
+  private void drain(Replayer replayer, BooleanSupplier ready, long intervalNanos)
+  {
+    long nextDue = System.nanoTime();
+    while (running)
+    {
+      try
+      {
+        Record record;
+        synchronized (this)
+        {
+          record = peek();
+          if (record == null)
+          {
+            paced = false;
+            wait(1000);
+            continue;
+          }
+        }
+        if (!ready.getAsBoolean())
+        {
+          paced = true;
+          Thread.sleep(100);
+          continue;
+        }
+        // paced against a schedule, without bursting to catch up after an idle period
+        long now = System.nanoTime();
+        boolean currentPaced = paced;
+        if (!currentPaced || nextDue < now - TimeUnit.SECONDS.toNanos(1))
+          nextDue = now;
+        while (currentPaced && (now = System.nanoTime()) < nextDue)
+          LockSupport.parkNanos(nextDue - now);
+        if (replayer.replay(record))
+        {
+          remove(record);
+          nextDue += intervalNanos;
+        }
+        else
+        {
+          Thread.sleep(10);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      catch (Exception e)
+      {
+        LOGGER.error("UNEXPECTED_ERROR", e);
+      }
+    }
+  }
+
+  private Record read(Segment segment, int position)
+  {
+    MappedByteBuffer buffer = segment.buffer;
+    int length = buffer.getInt(position);
+    int connection = buffer.getShort(position + 4);
+    int topicLength = buffer.getShort(position + 6);
+    byte[] topicBytes = new byte[topicLength];
+    for (int i = 0; i < topicLength; i++)
+      topicBytes[i] = buffer.get(position + RECORD_HEADER + i);
+    byte[] payload = new byte[length - RECORD_HEADER - topicLength];
+    int payloadPosition = position + RECORD_HEADER + topicLength;
+    for (int i = 0; i < payload.length; i++)
+      payload[i] = buffer.get(payloadPosition + i);
+    return new Record(connection, new String(topicBytes, StandardCharsets.UTF_8), payload, segment, position);
+  }
+
+  private Segment roll() throws IOException
+  {
+    while (segments.size() >= maxSegments)
+    {
+      Segment oldest = segments.pollFirst();
+      dropped += oldest.remaining;
+      pending -= oldest.remaining;
+      LOGGER.warn("SPILL_SEGMENT_DROPPED", oldest.file.getName(), oldest.remaining);
+      delete(oldest);
+    }
+    long sequence = nextSequence++;
+    Segment segment = new Segment(new File(directory, String.format("%019d%s", sequence, SUFFIX)), segmentSize);
+    segment.buffer.putInt(0, HEADER);
+    segment.buffer.putInt(4, MAGIC);
+    segments.addLast(segment);
+    return segment;
+  }
+
+  /**
+   * @return the read position in the header of a segment file, or -1 if the header is not valid
+   */
+  private int readPosition(File file) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      int readPosition = raf.readInt();
+      if (raf.readInt() != MAGIC || readPosition < HEADER || readPosition > segmentSize)
+        return -1;
+      return readPosition;
+    }
+  }
+
+  private void unlock()
+  {
+    try
+    {
+      if (lock.isValid())
+        lock.release();
+      lockChannel.close();
+    }
+    catch (IOException e)
+    {
+      LOGGER.error("UNEXPECTED_ERROR", e);
+    }
+  }
+
+  private void delete(Segment segment)
+  {
+    // marked as read first, in case the file cannot be deleted while it is still mapped
+    segment.buffer.putInt(0, segment.writePosition);
+    segment.buffer.force();
+    if (!segment.file.delete())
+      segment.file.deleteOnExit();
+  }
+
+  private void recover() throws IOException
+  {
+    File[] files = directory.listFiles((dir, fileName) -> fileName.endsWith(SUFFIX));
+    if (files == null)
+      return;
+    Arrays.sort(files);
+    for (File file : files)
+    {
+      long sequence;
+      try
+      {
+        sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+      }
+      catch (NumberFormatException e)
+      {
+        continue;
+      }
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      // a segment written with a different budget is not worth a second segment size, and one with
+      // a broken header cannot be read; neither is mapped, and both are deleted so they do not sit
+      // outside the disk budget
+      int readPosition = (file.length() == segmentSize) ? readPosition(file) : -1;
+      if (readPosition < 0)
+      {
+        LOGGER.warn("SPILL_SEGMENT_SKIPPED", file.getName());
+        if (!file.delete())
+          file.deleteOnExit();
+        continue;
+      }
+      Segment segment = new Segment(file, segmentSize);
+      MappedByteBuffer buffer = segment.buffer;
+      int position = HEADER;
+      while (position + RECORD_HEADER <= segmentSize)
+      {
+        int length = buffer.getInt(position);
+        if (length < RECORD_HEADER || position + length > segmentSize)
+          break;
+        if (position >= readPosition)
+          segment.remaining++;
+        position += length;
+      }
+      segment.readPosition = Math.min(readPosition, position);
+      segment.writePosition = position;
+      if (segment.remaining == 0)
+      {
+        delete(segment);
+        continue;
+      }
+      segments.addLast(segment);
+      pending += segment.remaining;
+    }
+    while (segments.size() > maxSegments)
+    {
+      Segment oldest = segments.pollFirst();
+      pending -= oldest.remaining;
+      dropped += oldest.remaining;
+      delete(oldest);
+    }
+    if (pending > 0)
+      LOGGER.info("SPILL_RECOVERED", pending, segments.size(), directory.getAbsolutePath());
+  }
+}
@@ -0,0 +1,191 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AwsIoTHubTopicTemplate class resolves a topic such as <code>fleet/{region}/{vehicleId}</code>
+ * from the fields of each outgoing record. The template is compiled once, field values are
+ * located with {@link AwsIoTHubJsonScanner} and resolved topics are kept in a bounded LRU cache
+ * keyed on the raw field value bytes, so a topic string is only built the first time a combination
+ * of values is seen.
+ */
+public class AwsIoTHubTopicTemplate
+{
+  private final String          template;
+  private final String[]        literals;
+  private final byte[][][]      fieldPaths;
+  private final int[]           range      = new int[4];
+  private final TopicKey        probe      = new TopicKey();
+  private final Map<TopicKey, String> cache;
+  private byte[]                scratch    = new byte[256];
+  private long                  unresolved = 0;
+
+  /**
+   * Cache key over the concatenated value bytes. The probe instance points at the scratch buffer,
+   * so looking up a cached topic does not allocate.
+   */
+  private static final class TopicKey
+  {
+    byte[] bytes;
+    int    length;
+    int    hash;
+
+    TopicKey set(byte[] bytes, int length)
+    {
+      this.bytes = bytes;
+      this.length = length;
+      this.hash = AwsIoTHubJsonScanner.hash(bytes, 0, length);
+      return this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof TopicKey))
+        return false;
+      TopicKey other = (TopicKey) obj;
+      if (hash != other.hash || length != other.length)
+        return false;
+      for (int i = 0; i < length; i++)
+      {
+        if (bytes[i] != other.bytes[i])
+          return false;
+      }
+      return true;
+    }
+  }
+
+  public AwsIoTHubTopicTemplate(String template, final int cacheSize)
+  {
+    this.template = template.trim();
+    List<String> literalList = new ArrayList<String>();
+    List<byte[][]> fieldList = new ArrayList<byte[][]>();
+    int position = 0;
+    while (true)
+    {
+      int open = this.template.indexOf('{', position);
+      int close = (open < 0) ? -1 : this.template.indexOf('}', open);
+      if (close < 0)
+      {
+        literalList.add(this.template.substring(position));
+        break;
+      }
+      literalList.add(this.template.substring(position, open));
+      fieldList.add(AwsIoTHubJsonScanner.compilePath(this.template.substring(open + 1, close)));
+      position = close + 1;
+    }
+    this.literals = literalList.toArray(new String[literalList.size()]);
+    this.fieldPaths = fieldList.toArray(new byte[fieldList.size()][][]);
+    this.cache = new LinkedHashMap<TopicKey, String>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TopicKey, String> eldest)
+        {
+          return size() > Math.max(1, cacheSize);
+        }
+      };
+  }
+
+  public boolean isStatic()
+  {
+    return fieldPaths.length == 0;
+  }
+
+  /**
+   * @return the topic of the record, or <code>null</code> if one of the template fields is missing
+   */
+  public synchronized String resolve(byte[] bytes, int offset, int length)
+  {
+    if (isStatic())
+      return template;
+
+    // gather the raw field values, separated by a byte that cannot occur inside a JSON value
+    int keyLength = 0;
+    for (int i = 0; i < fieldPaths.length; i++)
+    {
+      if (!AwsIoTHubJsonScanner.findField(bytes, offset, offset + length, fieldPaths[i], range))
+      {
+        unresolved++;
+        return null;
+      }
+      int start = AwsIoTHubJsonScanner.contentStart(bytes, range);
+      int end = AwsIoTHubJsonScanner.contentEnd(bytes, range);
+      if (keyLength + (end - start) + 1 > scratch.length)
+        scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, keyLength + (end - start) + 1));
+      System.arraycopy(bytes, start, scratch, keyLength, end - start);
+      keyLength += end - start;
+      scratch[keyLength++] = 0;
+    }
+
+    String topic = cache.get(probe.set(scratch, keyLength));
+    if (topic == null)
+    {
+      topic = build(keyLength);
+      cache.put(new TopicKey().set(Arrays.copyOf(scratch, keyLength), keyLength), topic);
+    }
+    return topic;
+  }
+
+  public synchronized long getUnresolvedCount()
+  {
+    return unresolved;
+  }
+
+  private String build(int keyLength)
+  {
+    StringBuilder topic = new StringBuilder(template.length() + keyLength);
+    int valueStart = 0;
+    for (int i = 0; i < literals.length; i++)
+    {
+      topic.append(literals[i]);
+      if (i < fieldPaths.length)
+      {
+        int valueEnd = valueStart;
+        while (scratch[valueEnd] != 0)
+          valueEnd++;
+        // a value must stay within its topic level and must not turn into a wildcard
+        String value = new String(scratch, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        topic.append(value.replace('/', '_').replace('+', '_').replace('#', '_'));
+        valueStart = valueEnd + 1;
+      }
+    }
+    return topic.toString();
+  }
+}
@@ -0,0 +1,320 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import com.esri.ges.framework.i18n.BundleLogger;
+import com.esri.ges.framework.i18n.BundleLoggerFactory;
+
+/**
+ * AwsIoTHubTracer class follows records from an outbound transport, through the broker, to an
+ * inbound transport. The sending side stamps each JSON record with a trace field placed right after
+ * its opening brace:
+ *
+ * <pre>
+ * {"_geTrace":"&lt;sender&gt;/&lt;connection&gt;:&lt;sequence&gt;:&lt;sent epoch millis&gt;", ...}
+ * </pre>
+ *
+ * The sequence counts per sender, connection and topic, since the broker only keeps the order of
+ * what one connection publishes to a topic. The receiving side removes the field again, in place,
+ * before the record reaches the adapter, and keeps latency, gap and duplicate statistics per
+ * topic. Aggregated payloads (one record per line, or a JSON array) carry one stamp per record.
+ */
+public class AwsIoTHubTracer implements AwsIoTHubTracerMBean
+{
+  private static final BundleLogger LOGGER       = BundleLoggerFactory.getLogger(AwsIoTHubTracer.class);
+
+  public static final String        TRACE_FIELD  = "_geTrace";
+  private static final byte[]       STAMP_PREFIX = ("\"" + TRACE_FIELD + "\":\"").getBytes(StandardCharsets.UTF_8);
+
+  private static final class TopicStats
+  {
+    final AwsIoTHubMetrics.Histogram latency = new AwsIoTHubMetrics.Histogram();
+    long                             traced;
+    long                             gaps;
+    long                             duplicates;
+  }
+
+  private final String                        type;
+  private final String                        sender;
+  private final int                           maxTopics;
+  // sending side, by connection and topic
+  private final Map<String, AtomicLong>       sequences  = new ConcurrentHashMap<String, AtomicLong>();
+  // receiving side; last sequence by sender, connection and topic, and statistics by topic
+  private final Map<String, Long>             lastSeen;
+  private final Map<String, TopicStats>       topics;
+  private final AwsIoTHubMetrics.Histogram    latency    = new AwsIoTHubMetrics.Histogram();
+  private long                                traced     = 0;
+  private long                                gaps       = 0;
+  private long                                duplicates = 0;
+  private ObjectName                          objectName = null;
+
+  /**
+   * @param type the JMX <code>type</code> key, normally the simple name of the transport class
+   * @param sender the id written into stamps, normally the client id of the outbound transport
+   * @param maxTopics the number of topics to keep sequences and statistics for
+   */
+  public AwsIoTHubTracer(String type, String sender, final int maxTopics)
+  {
+    this.type = type;
+    this.sender = (sender != null) ? sender.replace('"', '_').replace('\\', '_') : "";
+    this.maxTopics = Math.max(1, maxTopics);
+    this.lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+        {
+          return size() > AwsIoTHubTracer.this.maxTopics;
+        }
+      };
+    this.topics = new LinkedHashMap<String, TopicStats>(16, 0.75f, true)
+      {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TopicStats> eldest)
+        {
+          return size() > AwsIoTHubTracer.this.maxTopics;
+        }
+      };
+  }
+
+  /**
+   * Stamps a record about to be published to a topic over one of the connections.
+   *
+   * @return the stamped record, or the record itself if it is not a JSON object
+   */
+  public byte[] stamp(int connection, String topic, byte[] record)
+  {
+    int brace = AwsIoTHubJsonScanner.skipWhitespace(record, 0, record.length);
+    if (brace >= record.length || record[brace] != '{')
+      return record;
+
+    String key = connection + "\u0000" + topic;
+    AtomicLong sequence = sequences.get(key);
+    if (sequence == null)
+    {
+      // a sender restarting its sequences just looks like a new sender to the receiving side
+      if (sequences.size() >= maxTopics)
+        sequences.clear();
+      AtomicLong newSequence = new AtomicLong();
+      sequence = sequences.putIfAbsent(key, newSequence);
+      if (sequence == null)
+        sequence = newSequence;
+    }
+    int next = AwsIoTHubJsonScanner.skipWhitespace(record, brace + 1, record.length);
+    boolean empty = next < record.length && record[next] == '}';
+    byte[] stamp = ("\"" + TRACE_FIELD + "\":\"" + sender + "/" + connection + ":" + sequence.incrementAndGet() + ":" + System.currentTimeMillis() + (empty ? "\"" : "\",")).getBytes(StandardCharsets.UTF_8);
+
+    byte[] stamped = new byte[record.length + stamp.length];
+    System.arraycopy(record, 0, stamped, 0, brace + 1);
+    System.arraycopy(stamp, 0, stamped, brace + 1, stamp.length);
+    System.arraycopy(record, brace + 1, stamped, brace + 1 + stamp.length, record.length - brace - 1);
+    return stamped;
+  }
+
+  /**
+   * Removes the stamps from the records received on a topic, moving the rest of the bytes down
+   * over them, and records what the stamps say.
+   *
+   * @return the length of the records without their stamps
+   */
+  public int strip(String topic, byte[] bytes, int offset, int length)
+  {
+    int end = offset + length;
+    int write = offset;
+    int read = offset;
+    long now = System.currentTimeMillis();
+    while (read < end)
+    {
+      byte b = bytes[read];
+      bytes[write++] = b;
+      read++;
+      if (b != '{')
+        continue;
+      int field = AwsIoTHubJsonScanner.skipWhitespace(bytes, read, end);
+      if (!AwsIoTHubJsonScanner.regionEquals(bytes, field, Math.min(field + STAMP_PREFIX.length, end), STAMP_PREFIX))
+        continue;
+      int valueStart = field + STAMP_PREFIX.length;
+      int valueEnd = valueStart;
+      while (valueEnd < end && bytes[valueEnd] != '"')
+        valueEnd++;
+      if (valueEnd >= end)
+        continue;
+      record(topic, bytes, valueStart, valueEnd, now);
+      read = AwsIoTHubJsonScanner.skipWhitespace(bytes, valueEnd + 1, end);
+      if (read < end && bytes[read] == ',')
+        read++;
+    }
+    return write - offset;
+  }
+
+  private void record(String topic, byte[] bytes, int start, int end, long now)
+  {
+    // sender/connection:sequence:millis, read from the end since the sender may itself contain
+    // colons; the sender and connection together key the sequence
+    int second = lastIndexOf(bytes, start, end, (byte) ':');
+    int first = (second > start) ? lastIndexOf(bytes, start, second, (byte) ':') : -1;
+    if (first < 0)
+      return;
+    long sequence = parseLong(bytes, first + 1, second);
+    long sent = parseLong(bytes, second + 1, end);
+    if (sequence < 0 || sent < 0)
+      return;
+    String key = new String(bytes, start, first - start, StandardCharsets.UTF_8) + '\u0000' + topic;
+    long latencyNanos = Math.max(0, now - sent) * 1000000L;
+
+    synchronized (this)
+    {
+      TopicStats stats = topics.get(topic);
+      if (stats == null)
+      {
+        stats = new TopicStats();
+        topics.put(topic, stats);
+      }
+      Long last = lastSeen.get(key);
+      if (last != null && sequence <= last)
+      {
+        stats.duplicates++;
+        duplicates++;
+        return;
+      }
+      if (last != null && sequence > last + 1)
+      {
+        stats.gaps += sequence - last - 1;
+        gaps += sequence - last - 1;
+      }
+      lastSeen.put(key, sequence);
+      stats.traced++;
+      stats.latency.record(latencyNanos);
+      traced++;
+    }
+    latency.record(latencyNanos);
+  }
+
+  private static int lastIndexOf(byte[] bytes, int start, int end, byte b)
+  {
+    for (int i = end - 1; i >= start; i--)
+    {
+      if (bytes[i] == b)
+        return i;
+    }
+    return -1;
+  }
+
+  private static long parseLong(byte[] bytes, int start, int end)
+  {
+    if (start >= end || end - start > 18)
+      return -1;
+    long value = 0;
+    for (int i = start; i < end; i++)
+    {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9)
+        return -1;
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  public synchronized void register(String name)
+  {
+    unregister();
+    objectName = AwsIoTHubMetrics.registerMBean(this, type, name, "trace");
+  }
+
+  public synchronized void unregister()
+  {
+    AwsIoTHubMetrics.unregisterMBean(objectName);
+    objectName = null;
+  }
+
+  /**
+   * @return a one line summary for the transport status details
+   */
+  public String getSummary()
+  {
+    return LOGGER.translate("TRACE_STATUS", getTraced(), getLatencyP50Millis(), getLatencyP99Millis(), getGaps(), getDuplicates());
+  }
+
+  @Override
+  public synchronized long getTraced()
+  {
+    return traced;
+  }
+
+  @Override
+  public synchronized long getGaps()
+  {
+    return gaps;
+  }
+
+  @Override
+  public synchronized long getDuplicates()
+  {
+    return duplicates;
+  }
+
+  @Override
+  public long getLatencyP50Millis()
+  {
+    return latency.quantile(0.5) / 1000000L;
+  }
+
+  @Override
+  public long getLatencyP99Millis()
+  {
+    return latency.quantile(0.99) / 1000000L;
+  }
+
+  @Override
+  public long getLatencyMaxMillis()
+  {
+    return latency.getMax() / 1000000L;
+  }
+
+  @Override
+  public synchronized String[] getTopicSummaries()
+  {
+    List<String> summaries = new ArrayList<String>(topics.size());
+    for (Map.Entry<String, TopicStats> entry : topics.entrySet())
+    {
+      TopicStats stats = entry.getValue();
+      summaries.add(LOGGER.translate("TRACE_TOPIC_STATUS", entry.getKey(), stats.traced, stats.latency.quantile(0.5) / 1000000L, stats.latency.quantile(0.99) / 1000000L, stats.gaps, stats.duplicates));
+    }
+    return summaries.toArray(new String[summaries.size()]);
+  }
+}
@@ -0,0 +1,50 @@
+/*
+  Copyright 1995-2016 Esri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+  For additional information, contact:
+  Environmental Systems Research Institute, Inc.
+  Attn: Contracts Dept
+  380 New York Street
+  Redlands, California, USA 92373
+
+  email: contracts@esri.com
+ */
+
+package com.esri.geoevent.transport.aws;
+
+/**
+ * AwsIoTHubTracerMBean interface is the JMX view of the end-to-end trace statistics gathered by an
+ * inbound transport. Latencies are in milliseconds and include any clock difference between the
+ * sending and the receiving machine.
+ */
+public interface AwsIoTHubTracerMBean
+{
+  long getTraced();
+
+  long getGaps();
+
+  long getDuplicates();
+
+  long getLatencyP50Millis();
+
+  long getLatencyP99Millis();
+
+  long getLatencyMaxMillis();
+
+  /**
+   * @return one line per topic with its count, latency, gaps and duplicates
+   */
+  String[] getTopicSummaries();
+}
@@ -0,0 +1,82 @@
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+import com.esri.geoevent.transport.aws.AwsIoTHubCodec.Compression;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for reusing and ending the payload codecs of a transport.
+ */
+public class AwsIoTHubCodecPoolTest
+    extends TestCase
+{
+    private static final byte[] PAYLOAD = "{\"id\":\"a\",\"v\":1}{\"id\":\"a\",\"v\":1}{\"id\":\"a\",\"v\":1}".getBytes( StandardCharsets.UTF_8 );
+
+    public AwsIoTHubCodecPoolTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubCodecPoolTest.class );
+    }
+
+    public void testReleasedCodecIsReused()
+    {
+        AwsIoTHubCodecPool pool = new AwsIoTHubCodecPool( 2 );
+        AwsIoTHubCodec codec = pool.acquire();
+        byte[] compressed = codec.compress( Compression.GZIP, PAYLOAD, 0, PAYLOAD.length );
+        pool.release( codec );
+
+        AwsIoTHubCodec reused = pool.acquire();
+        assertSame( codec, reused );
+        int length = reused.decompress( compressed, 0, compressed.length, 1024 );
+        assertEquals( new String( PAYLOAD, StandardCharsets.UTF_8 ), new String( reused.getBuffer(), 0, length, StandardCharsets.UTF_8 ) );
+        pool.close();
+    }
+
+    public void testCodecReleasedAfterCloseIsEnded()
+    {
+        AwsIoTHubCodecPool pool = new AwsIoTHubCodecPool( 2 );
+        AwsIoTHubCodec idle = pool.acquire();
+        AwsIoTHubCodec inUse = pool.acquire();
+        pool.release( idle );
+        pool.close();
+        assertEnded( idle );
+
+        inUse.compress( Compression.DEFLATE, PAYLOAD, 0, PAYLOAD.length );
+        pool.release( inUse );
+        assertEnded( inUse );
+        assertNotSame( inUse, pool.acquire() );
+    }
+
+    public void testCodecBeyondPoolSizeIsEnded()
+    {
+        AwsIoTHubCodecPool pool = new AwsIoTHubCodecPool( 1 );
+        AwsIoTHubCodec first = pool.acquire();
+        AwsIoTHubCodec second = pool.acquire();
+        pool.release( first );
+        pool.release( second );
+        assertEnded( second );
+        assertSame( first, pool.acquire() );
+        pool.close();
+    }
+
+    private static void assertEnded( AwsIoTHubCodec codec )
+    {
+        try
+        {
+            codec.compress( Compression.DEFLATE, PAYLOAD, 0, PAYLOAD.length );
+            fail( "codec still usable" );
+        }
+        catch ( NullPointerException e )
+        {
+            // an ended deflater reports itself closed
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.esri.geoevent.transport.aws;
+
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.iot.client.AWSIotDevice;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMqttClient;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for attaching and evicting the devices of the shadow output.
+ */
+public class AwsIoTHubDeviceCacheTest
+    extends TestCase
+{
+    public AwsIoTHubDeviceCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubDeviceCacheTest.class );
+    }
+
+    public void testSlowAttachDoesNotBlockOtherThings() throws Exception
+    {
+        SlowClient client = new SlowClient( "slow" );
+        AwsIoTHubDeviceCache cache = new AwsIoTHubDeviceCache( "test", client, "default", "", 10, 0 );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            Future<AWSIotDevice> first = executor.submit( () -> cache.get( "slow" ) );
+            assertTrue( "attach of the slow thing not started", client.attaching.await( 5, TimeUnit.SECONDS ) );
+            Future<AWSIotDevice> second = executor.submit( () -> cache.get( "slow" ) );
+
+            assertEquals( "fast", cache.get( "fast" ).getThingName() );
+            assertEquals( 2, cache.size() );
+            assertFalse( second.isDone() );
+
+            client.release.countDown();
+            assertSame( first.get( 5, TimeUnit.SECONDS ), second.get( 5, TimeUnit.SECONDS ) );
+            assertEquals( 2, client.attaches.get() );
+        }
+        finally
+        {
+            client.release.countDown();
+            executor.shutdownNow();
+            cache.stop();
+        }
+    }
+
+    public void testFailedAttachIsRetried() throws Exception
+    {
+        SlowClient client = new SlowClient( null );
+        client.failures.set( 1 );
+        AwsIoTHubDeviceCache cache = new AwsIoTHubDeviceCache( "test", client, "default", "", 10, 0 );
+        try
+        {
+            cache.get( "a" );
+            fail( "attach failure not reported" );
+        }
+        catch ( AWSIotException e )
+        {
+            assertEquals( 0, cache.size() );
+        }
+        assertEquals( "a", cache.get( "a" ).getThingName() );
+        assertEquals( 1, cache.size() );
+        cache.stop();
+    }
+
+    public void testEldestDeviceIsDetached() throws Exception
+    {
+        SlowClient client = new SlowClient( null );
+        AwsIoTHubDeviceCache cache = new AwsIoTHubDeviceCache( "test", client, "default", "", 2, 0 );
+        cache.get( "a" );
+        cache.get( "b" );
+        cache.get( "a" );
+        cache.get( "c" );
+        assertEquals( 2, cache.size() );
+        assertEquals( 1, client.detaches.get() );
+        cache.stop();
+        assertEquals( 3, client.detaches.get() );
+    }
+
+    private static class SlowClient
+        extends AWSIotMqttClient
+    {
+        final String         slowThing;
+        final CountDownLatch attaching = new CountDownLatch( 1 );
+        final CountDownLatch release   = new CountDownLatch( 1 );
+        final AtomicInteger  attaches  = new AtomicInteger();
+        final AtomicInteger  detaches  = new AtomicInteger();
+        final AtomicInteger  failures  = new AtomicInteger();
+
+        SlowClient( String slowThing ) throws Exception
+        {
+            super( "localhost", "test", emptyKeyStore(), "" );
+            this.slowThing = slowThing;
+        }
+
+        private static KeyStore emptyKeyStore() throws Exception
+        {
+            KeyStore keyStore = KeyStore.getInstance( KeyStore.getDefaultType() );
+            keyStore.load( null, null );
+            return keyStore;
+        }
+
+        @Override
+        public void attach( AWSIotDevice device ) throws AWSIotException
+        {
+            if ( failures.getAndDecrement() > 0 )
+                throw new AWSIotException( "attach failed" );
+            if ( device.getThingName().equals( slowThing ) )
+            {
+                attaching.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new AWSIotException( e.toString() );
+                }
+            }
+            attaches.incrementAndGet();
+        }
+
+        @Override
+        public void detach( AWSIotDevice device )
+        {
+            detaches.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the QoS1 duplicate filter of the inbound transport.
+ */
+public class AwsIoTHubDuplicateFilterTest
+    extends TestCase
+{
+    public AwsIoTHubDuplicateFilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubDuplicateFilterTest.class );
+    }
+
+    public void testRepeatIsDuplicate()
+    {
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 60000, 1000 );
+        assertFalse( isDuplicate( filter, "a", "{\"v\":1}" ) );
+        assertTrue( isDuplicate( filter, "a", "{\"v\":1}" ) );
+        assertTrue( isDuplicate( filter, "a", "{\"v\":1}" ) );
+        assertEquals( 3, filter.getCheckedCount() );
+        assertEquals( 2, filter.getDuplicateCount() );
+    }
+
+    public void testTopicAndPayloadBothCount()
+    {
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 60000, 1000 );
+        assertFalse( isDuplicate( filter, "a", "{\"v\":1}" ) );
+        assertFalse( isDuplicate( filter, "b", "{\"v\":1}" ) );
+        assertFalse( isDuplicate( filter, "a", "{\"v\":2}" ) );
+        assertEquals( 0, filter.getDuplicateCount() );
+    }
+
+    public void testOnlyTheGivenRangeCounts()
+    {
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 60000, 1000 );
+        byte[] first = "xx{\"v\":1}yy".getBytes( StandardCharsets.UTF_8 );
+        byte[] second = "{\"v\":1}zzzz".getBytes( StandardCharsets.UTF_8 );
+        assertFalse( filter.isDuplicate( "a", first, 2, 7 ) );
+        assertTrue( filter.isDuplicate( "a", second, 0, 7 ) );
+    }
+
+    public void testKeyIsNeverZero()
+    {
+        // zero marks an empty slot of the tables
+        assertTrue( AwsIoTHubDuplicateFilter.key( "", new byte[0], 0, 0 ) != 0 );
+    }
+
+    public void testFullGenerationRotates()
+    {
+        // 16 entries is the smallest generation
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 3600000, 16 );
+        for ( int i = 0; i < 16; i++ )
+            assertFalse( isDuplicate( filter, "old", Integer.toString( i ) ) );
+
+        // the next message swaps the generations; the old messages are still remembered
+        assertFalse( isDuplicate( filter, "new", "0" ) );
+        for ( int i = 0; i < 16; i++ )
+            assertTrue( isDuplicate( filter, "old", Integer.toString( i ) ) );
+
+        // once the new generation fills up too, the old one is forgotten
+        for ( int i = 1; i < 16; i++ )
+            assertFalse( isDuplicate( filter, "new", Integer.toString( i ) ) );
+        assertFalse( isDuplicate( filter, "newer", "0" ) );
+        for ( int i = 0; i < 16; i++ )
+            assertFalse( isDuplicate( filter, "old", Integer.toString( i ) ) );
+    }
+
+    public void testHalfWindowRotates() throws InterruptedException
+    {
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 200, 1000 );
+        assertFalse( isDuplicate( filter, "a", "1" ) );
+
+        // one half window later the message is in the previous generation and still caught
+        Thread.sleep( 150 );
+        assertTrue( isDuplicate( filter, "a", "1" ) );
+
+        // another half window later it has aged out
+        Thread.sleep( 150 );
+        assertFalse( isDuplicate( filter, "a", "1" ) );
+        assertTrue( isDuplicate( filter, "a", "1" ) );
+    }
+
+    public void testManyDistinctMessages()
+    {
+        AwsIoTHubDuplicateFilter filter = new AwsIoTHubDuplicateFilter( 3600000, 50000 );
+        for ( int i = 0; i < 50000; i++ )
+            assertFalse( isDuplicate( filter, "t", "{\"seq\":" + i + "}" ) );
+        for ( int i = 0; i < 50000; i++ )
+            assertTrue( isDuplicate( filter, "t", "{\"seq\":" + i + "}" ) );
+        assertEquals( 50000, filter.getDuplicateCount() );
+    }
+
+    private static boolean isDuplicate( AwsIoTHubDuplicateFilter filter, String topic, String payload )
+    {
+        byte[] bytes = bytes( payload );
+        return filter.isDuplicate( topic, bytes, 0, bytes.length );
+    }
+
+    private static byte[] bytes( String text )
+    {
+        return text.getBytes( StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,256 @@
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the message filter of the inbound transport.
+ */
+public class AwsIoTHubInboundFilterTest
+    extends TestCase
+{
+    private static final String RECORD = "{\"id\":\"truck-7\",\"speed\":42.5,\"count\":3,\"active\":true,\"note\":null,"
+        + "\"tags\":[{\"speed\":1},\"a\"],\"position\":{\"lat\":-33.9,\"lon\":18.4,\"fix\":{\"quality\":\"gps\"}},\"text\":\"say \\\"hi\\\", \\\"speed\\\":0\"}";
+
+    public AwsIoTHubInboundFilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubInboundFilterTest.class );
+    }
+
+    public void testBlankExpressionIsNoFilter()
+    {
+        assertNull( AwsIoTHubInboundFilter.parse( null ) );
+        assertNull( AwsIoTHubInboundFilter.parse( "  " ) );
+        assertNull( AwsIoTHubInboundFilter.parse( " ; ;" ) );
+        assertEquals( "speed>1; id", AwsIoTHubInboundFilter.parse( " speed>1; id " ).toString() );
+    }
+
+    public void testInvalidPredicates()
+    {
+        assertInvalid( "speed > fast" );
+        assertInvalid( "my field=1" );
+        assertInvalid( "!" );
+    }
+
+    public void testExists()
+    {
+        assertMatch( "id", true );
+        assertMatch( "note", true );
+        assertMatch( "missing", false );
+        assertMatch( "position.fix.quality", true );
+        assertMatch( "position.fix.missing", false );
+    }
+
+    public void testAbsent()
+    {
+        assertMatch( "!missing", true );
+        assertMatch( "!id", false );
+        assertMatch( "!position.lat", false );
+        assertMatch( "!position.alt", true );
+    }
+
+    public void testEquals()
+    {
+        assertMatch( "id=truck-7", true );
+        assertMatch( "id=\"truck-7\"", true );
+        assertMatch( "id=truck-8", false );
+        assertMatch( "count=3", true );
+        assertMatch( "count=3.0", true );
+        assertMatch( "count=4", false );
+        assertMatch( "speed=42.50", true );
+        assertMatch( "active=true", true );
+        assertMatch( "active=false", false );
+        assertMatch( "note=null", true );
+        assertMatch( "missing=1", false );
+        assertMatch( "position.fix.quality=gps", true );
+    }
+
+    public void testNotEquals()
+    {
+        assertMatch( "id!=truck-8", true );
+        assertMatch( "id!=truck-7", false );
+        assertMatch( "count!=3.0", false );
+        // a missing field is not equal to anything
+        assertMatch( "missing!=1", true );
+    }
+
+    public void testIn()
+    {
+        assertMatch( "id in [truck-1, truck-7]", true );
+        assertMatch( "id in [\"truck-1\",\"truck-7\"]", true );
+        assertMatch( "id in [truck-1,truck-2]", false );
+        assertMatch( "count in [1,2,3e0]", true );
+        assertMatch( "missing in [1]", false );
+        assertMatch( "position.fix.quality in [gps,glonass]", true );
+    }
+
+    public void testNotIn()
+    {
+        assertMatch( "id not in [truck-1,truck-2]", true );
+        assertMatch( "id not in [truck-1,truck-7]", false );
+        assertMatch( "missing not in [1]", true );
+    }
+
+    public void testComparisons()
+    {
+        assertMatch( "speed>42", true );
+        assertMatch( "speed>42.5", false );
+        assertMatch( "speed>=42.5", true );
+        assertMatch( "speed<42.5", false );
+        assertMatch( "speed<=42.5", true );
+        assertMatch( "speed<1e2", true );
+        assertMatch( "position.lat<-30", true );
+        assertMatch( "position.lat>-3.39E1", false );
+        // a range is two comparisons
+        assertMatch( "speed>40;speed<50", true );
+        assertMatch( "speed>40;speed<42", false );
+    }
+
+    public void testComparisonsNeedNumbers()
+    {
+        assertMatch( "id>1", false );
+        assertMatch( "active<1", false );
+        assertMatch( "position>1", false );
+        assertMatch( "missing<1", false );
+    }
+
+    public void testPathsDoNotLookIntoOtherValues()
+    {
+        // "speed" inside the tags array and inside the text string are not the top level field
+        assertMatch( "speed=42.5", true );
+        assertMatch( "speed=1", false );
+        assertMatch( "speed=0", false );
+        assertMatch( "quality", false );
+        assertMatch( "lat", false );
+        // a path cannot go through something that is not an object
+        assertMatch( "tags.speed", false );
+        assertMatch( "id.speed", false );
+    }
+
+    public void testArrayValuesCompareAsWritten()
+    {
+        assertMatch( "tags", true );
+        assertMatch( "tags=[{\"speed\":1},\"a\"]", true );
+        assertMatch( "tags>0", false );
+        assertMatch( "text=say \\\"hi\\\", \\\"speed\\\":0", true );
+    }
+
+    public void testAllPredicatesMustHold()
+    {
+        assertMatch( "id;speed>40;position.fix.quality=gps;!missing", true );
+        assertMatch( "id;speed>40;position.fix.quality=glonass;!missing", false );
+    }
+
+    public void testFilterKeepsSingleRecord()
+    {
+        assertFiltered( "speed>10", "{\"speed\":20}", "{\"speed\":20}" );
+        assertFiltered( "speed>10", "{\"speed\":5}", "" );
+    }
+
+    public void testFilterLines()
+    {
+        assertFiltered( "speed>10", "{\"speed\":5}\n{\"speed\":20}\n{\"speed\":30}\n{\"speed\":1}", "{\"speed\":20}\n{\"speed\":30}" );
+        assertFiltered( "speed>10", "{\"speed\":5}\r\n{\"speed\":6}\r\n", "" );
+        assertFiltered( "position.lat<0", "{\"position\":{\"lat\":1}}\n{\"position\":{\"lat\":-1}}", "{\"position\":{\"lat\":-1}}" );
+    }
+
+    public void testFilterArray()
+    {
+        assertFiltered( "speed>10", "[{\"speed\":5}, {\"speed\":20} ,{\"speed\":1},{\"speed\":30}]", "[{\"speed\":20},{\"speed\":30}]" );
+        assertFiltered( "speed>10", " [ {\"speed\":15} ] ", "[{\"speed\":15}]" );
+        assertFiltered( "speed>10", "[{\"speed\":1},{\"speed\":2}]", "" );
+        assertFiltered( "speed>10", "[]", "" );
+    }
+
+    public void testFilterKeepsNestedArraysWhole()
+    {
+        assertFiltered( "id=b", "[{\"id\":\"a\",\"list\":[1,2]},{\"id\":\"b\",\"list\":[{\"id\":\"a\"}]}]", "[{\"id\":\"b\",\"list\":[{\"id\":\"a\"}]}]" );
+    }
+
+    public void testFilterTruncatedMessage()
+    {
+        // the cut off record is judged on what there is of it
+        assertFiltered( "speed>10", "{\"speed\":5}\n{\"speed\":20,\"id\":\"x", "{\"speed\":20,\"id\":\"x" );
+        assertFiltered( "speed>10", "[{\"speed\":20},{\"speed\":30", "[{\"speed\":20},{\"speed\":30" );
+    }
+
+    public void testFilterTextMessage()
+    {
+        assertFiltered( "!speed", "plain text", "plain text" );
+        assertFiltered( "speed", "plain text", "" );
+    }
+
+    public void testFilterAtOffset()
+    {
+        AwsIoTHubInboundFilter filter = AwsIoTHubInboundFilter.parse( "v=2" );
+        byte[] bytes = "xx{\"v\":1}\n{\"v\":2}yy".getBytes( StandardCharsets.UTF_8 );
+        int length = filter.filter( bytes, 2, bytes.length - 4, null );
+        assertEquals( "{\"v\":2}", new String( bytes, 2, length, StandardCharsets.UTF_8 ) );
+        assertEquals( 'x', bytes[1] );
+    }
+
+    public void testFilterCountsRecords()
+    {
+        AwsIoTHubMetrics metrics = new AwsIoTHubMetrics( "test" );
+        AwsIoTHubInboundFilter filter = AwsIoTHubInboundFilter.parse( "v>1" );
+        byte[] bytes = "[{\"v\":1},{\"v\":2},{\"v\":3}]".getBytes( StandardCharsets.UTF_8 );
+        filter.filter( bytes, 0, bytes.length, metrics );
+        assertEquals( 2, metrics.getFilterMatched() );
+        assertEquals( 1, metrics.getFilterDiscarded() );
+    }
+
+    public void testParseNumber()
+    {
+        assertEquals( 42.0, number( "42" ), 0 );
+        assertEquals( -0.5, number( "-0.5" ), 0 );
+        assertEquals( 1500.0, number( "1.5e3" ), 0 );
+        assertEquals( 0.015, number( "1.5E-2" ), 1e-12 );
+        assertTrue( Double.isNaN( number( "" ) ) );
+        assertTrue( Double.isNaN( number( "-" ) ) );
+        assertTrue( Double.isNaN( number( "1e" ) ) );
+        assertTrue( Double.isNaN( number( "12a" ) ) );
+        assertTrue( Double.isNaN( number( "\"1\"" ) ) );
+    }
+
+    private static void assertMatch( String expression, boolean expected )
+    {
+        AwsIoTHubInboundFilter filter = AwsIoTHubInboundFilter.parse( expression );
+        byte[] bytes = RECORD.getBytes( StandardCharsets.UTF_8 );
+        assertEquals( expression, expected, filter.matches( bytes, 0, bytes.length ) );
+    }
+
+    private static void assertFiltered( String expression, String message, String expected )
+    {
+        AwsIoTHubInboundFilter filter = AwsIoTHubInboundFilter.parse( expression );
+        byte[] bytes = message.getBytes( StandardCharsets.UTF_8 );
+        int length = filter.filter( bytes, 0, bytes.length, null );
+        assertEquals( message, expected, new String( bytes, 0, length, StandardCharsets.UTF_8 ) );
+    }
+
+    private static void assertInvalid( String expression )
+    {
+        try
+        {
+            AwsIoTHubInboundFilter.parse( expression );
+            fail( expression );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // expected
+        }
+    }
+
+    private static double number( String text )
+    {
+        byte[] bytes = text.getBytes( StandardCharsets.UTF_8 );
+        return AwsIoTHubInboundFilter.parseNumber( bytes, 0, bytes.length );
+    }
+}
@@ -0,0 +1,219 @@
+package com.esri.geoevent.transport.aws;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the JSON field scanner.
+ */
+public class AwsIoTHubJsonScannerTest
+    extends TestCase
+{
+    public AwsIoTHubJsonScannerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubJsonScannerTest.class );
+    }
+
+    public void testTopLevelFields()
+    {
+        String json = " { \"a\" : 1 , \"b\":\"two\",\"c\":true,\"d\":null,\"e\":-1.5e3 } ";
+        assertEquals( "1", value( json, "a" ) );
+        assertEquals( "\"two\"", value( json, "b" ) );
+        assertEquals( "two", content( json, "b" ) );
+        assertEquals( "true", value( json, "c" ) );
+        assertEquals( "null", value( json, "d" ) );
+        assertEquals( "-1.5e3", value( json, "e" ) );
+        assertNull( value( json, "f" ) );
+    }
+
+    public void testNameRange()
+    {
+        byte[] bytes = bytes( "{\"name\":1}" );
+        int[] range = new int[4];
+        assertTrue( AwsIoTHubJsonScanner.findField( bytes, 0, bytes.length, AwsIoTHubJsonScanner.compilePath( "name" ), range ) );
+        assertEquals( "name", new String( bytes, range[AwsIoTHubJsonScanner.NAME_START], range[AwsIoTHubJsonScanner.NAME_END] - range[AwsIoTHubJsonScanner.NAME_START], StandardCharsets.UTF_8 ) );
+    }
+
+    public void testEscapedStrings()
+    {
+        String json = "{\"a\":\"quote \\\" and \\\\\",\"b\":\"\\\\\",\"c\":\"x\\\"y\\\":1, \\\"d\\\":2\",\"d\":3}";
+        assertEquals( "quote \\\" and \\\\", content( json, "a" ) );
+        assertEquals( "\\\\", content( json, "b" ) );
+        // a member written inside a string is not a member
+        assertEquals( "3", value( json, "d" ) );
+        assertNull( value( json, "y" ) );
+    }
+
+    public void testEscapedNames()
+    {
+        String json = "{\"a\\\"b\":1,\"ab\":2}";
+        assertEquals( "2", value( json, "ab" ) );
+        assertEquals( "1", value( json, "a\\\"b" ) );
+    }
+
+    public void testUnicodeText()
+    {
+        String json = "{\"na\u00efve\":\"caf\u00e9 \u2615\",\"next\":1}";
+        assertEquals( "caf\u00e9 \u2615", content( json, "na\u00efve" ) );
+        assertEquals( "1", value( json, "next" ) );
+    }
+
+    public void testNestedObjects()
+    {
+        String json = "{\"a\":{\"b\":{\"c\":\"deep\"},\"x\":1},\"b\":{\"c\":\"shallow\"},\"x\":2}";
+        assertEquals( "\"deep\"", value( json, "a.b.c" ) );
+        assertEquals( "\"shallow\"", value( json, "b.c" ) );
+        assertEquals( "1", value( json, "a.x" ) );
+        assertEquals( "2", value( json, "x" ) );
+        assertEquals( "{\"c\":\"deep\"}", value( json, "a.b" ) );
+        // the path is only followed from the top
+        assertNull( value( json, "c" ) );
+        assertNull( value( json, "a.c" ) );
+        assertNull( value( json, "a.b.c.d" ) );
+    }
+
+    public void testNestedLookupStaysInsideItsObject()
+    {
+        // "y" only exists after the object "a", so "a.y" must not find it
+        String json = "{\"a\":{\"x\":1},\"y\":2}";
+        assertNull( value( json, "a.y" ) );
+        assertEquals( "2", value( json, "y" ) );
+    }
+
+    public void testArraysAreSkipped()
+    {
+        String json = "{\"list\":[1,[2,3],{\"x\":\"]\"},\"}\"],\"x\":4}";
+        assertEquals( "[1,[2,3],{\"x\":\"]\"},\"}\"]", value( json, "list" ) );
+        assertEquals( "4", value( json, "x" ) );
+        assertNull( value( json, "list.x" ) );
+    }
+
+    public void testEmptyObjects()
+    {
+        assertNull( value( "{}", "a" ) );
+        assertNull( value( "{ }", "a" ) );
+        assertEquals( "{}", value( "{\"a\":{},\"b\":1}", "a" ) );
+        assertNull( value( "{\"a\":{},\"b\":1}", "a.b" ) );
+    }
+
+    public void testNotAnObject()
+    {
+        assertNull( value( "", "a" ) );
+        assertNull( value( "   ", "a" ) );
+        assertNull( value( "[{\"a\":1}]", "a" ) );
+        assertNull( value( "\"a\"", "a" ) );
+        assertNull( value( "plain text", "a" ) );
+    }
+
+    public void testTruncatedInput()
+    {
+        // fields before the cut are found, the one cut off is not
+        assertEquals( "1", value( "{\"a\":1,\"b\":\"unterminated", "a" ) );
+        assertNull( value( "{\"a\":1,\"b\":\"unterminated", "b" ) );
+        assertNull( value( "{\"a\":1,\"b\":{\"c\":2", "b" ) );
+        assertNull( value( "{\"a\":1,\"b\":{\"c\":2", "b.c" ) );
+        assertNull( value( "{\"a\":1,\"b\":", "b" ) );
+        assertNull( value( "{\"a\":1,\"b\"", "b" ) );
+        assertNull( value( "{\"a\":1,\"b", "b" ) );
+        assertNull( value( "{\"a\\", "a" ) );
+        assertNull( value( "{", "a" ) );
+        // a number running into the end of the input is complete as far as the scanner knows
+        assertEquals( "12", value( "{\"a\":12", "a" ) );
+    }
+
+    public void testMalformedMembers()
+    {
+        assertNull( value( "{a:1}", "a" ) );
+        assertNull( value( "{\"a\" 1,\"b\":2}", "b" ) );
+        assertNull( value( "{\"a\":,\"b\":2}", "b" ) );
+    }
+
+    public void testEndLimitsTheScan()
+    {
+        byte[] bytes = bytes( "{\"a\":1,\"b\":2}" );
+        int[] range = new int[4];
+        byte[][] path = AwsIoTHubJsonScanner.compilePath( "b" );
+        assertTrue( AwsIoTHubJsonScanner.findField( bytes, 0, bytes.length, path, range ) );
+        assertFalse( AwsIoTHubJsonScanner.findField( bytes, 0, 8, path, range ) );
+    }
+
+    public void testOffset()
+    {
+        byte[] bytes = bytes( "{\"a\":0}{\"a\":1}" );
+        int[] range = new int[4];
+        assertTrue( AwsIoTHubJsonScanner.findField( bytes, 7, bytes.length, AwsIoTHubJsonScanner.compilePath( "a" ), range ) );
+        assertEquals( '1', bytes[range[AwsIoTHubJsonScanner.VALUE_START]] );
+    }
+
+    public void testSkipValue()
+    {
+        assertEquals( 5, skip( "\"a\\\"\"x" ) );
+        assertEquals( 9, skip( "{\"a\":[1]}x" ) );
+        assertEquals( 3, skip( "123,4" ) );
+        assertEquals( 4, skip( "true}" ) );
+        assertEquals( -1, skip( "" ) );
+        assertEquals( -1, skip( "\"abc" ) );
+        assertEquals( -1, skip( "[1,{\"a\":2}" ) );
+        assertEquals( -1, skip( "{\"a\":\"}\"" ) );
+    }
+
+    public void testCompilePath()
+    {
+        byte[][] path = AwsIoTHubJsonScanner.compilePath( " a . b .c " );
+        assertEquals( 3, path.length );
+        assertEquals( "a", new String( path[0], StandardCharsets.UTF_8 ) );
+        assertEquals( "b", new String( path[1], StandardCharsets.UTF_8 ) );
+        assertEquals( "c", new String( path[2], StandardCharsets.UTF_8 ) );
+    }
+
+    public void testHashIsStable()
+    {
+        byte[] bytes = bytes( "xabcx" );
+        assertEquals( AwsIoTHubJsonScanner.hash( bytes( "abc" ), 0, 3 ), AwsIoTHubJsonScanner.hash( bytes, 1, 4 ) );
+        assertTrue( AwsIoTHubJsonScanner.hash( bytes, 1, 4 ) != AwsIoTHubJsonScanner.hash( bytes, 0, 3 ) );
+    }
+
+    /**
+     * @return the raw value of the field, or <code>null</code> if it is not found
+     */
+    private static String value( String json, String path )
+    {
+        byte[] bytes = bytes( json );
+        int[] range = new int[4];
+        if ( !AwsIoTHubJsonScanner.findField( bytes, 0, bytes.length, AwsIoTHubJsonScanner.compilePath( path ), range ) )
+            return null;
+        int start = range[AwsIoTHubJsonScanner.VALUE_START];
+        return new String( bytes, start, range[AwsIoTHubJsonScanner.VALUE_END] - start, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * @return the value of the field without the quotes of a string
+     */
+    private static String content( String json, String path )
+    {
+        byte[] bytes = bytes( json );
+        int[] range = new int[4];
+        assertTrue( path, AwsIoTHubJsonScanner.findField( bytes, 0, bytes.length, AwsIoTHubJsonScanner.compilePath( path ), range ) );
+        int start = AwsIoTHubJsonScanner.contentStart( bytes, range );
+        return new String( bytes, start, AwsIoTHubJsonScanner.contentEnd( bytes, range ) - start, StandardCharsets.UTF_8 );
+    }
+
+    private static int skip( String json )
+    {
+        byte[] bytes = bytes( json );
+        return AwsIoTHubJsonScanner.skipValue( bytes, 0, bytes.length );
+    }
+
+    private static byte[] bytes( String text )
+    {
+        return text.getBytes( StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,451 @@
+package com.esri.geoevent.transport.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the disk spill queue of the outbound transport.
+ */
+public class AwsIoTHubSpillQueueTest
+    extends TestCase
+{
+    // the smallest budget: four segments of 64 KB
+    private static final long BUDGET = 256 * 1024;
+
+    private File directory;
+
+    public AwsIoTHubSpillQueueTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AwsIoTHubSpillQueueTest.class );
+    }
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        directory = File.createTempFile( "spill", "" );
+        assertTrue( directory.delete() );
+        assertTrue( directory.mkdirs() );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testRecordsComeBackInOrder() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertTrue( queue.isEmpty() );
+            assertNull( queue.peek() );
+            for ( int i = 0; i < 10; i++ )
+                assertTrue( queue.append( i % 3, "topic/" + i, payload( i, 10 ) ) );
+            assertEquals( 10, queue.getPending() );
+
+            for ( int i = 0; i < 10; i++ )
+            {
+                AwsIoTHubSpillQueue.Record record = queue.peek();
+                assertEquals( i % 3, record.connection );
+                assertEquals( "topic/" + i, record.topic );
+                assertEquals( new String( payload( i, 10 ), StandardCharsets.UTF_8 ), new String( record.payload, StandardCharsets.UTF_8 ) );
+                // a record stays queued until it is removed
+                assertEquals( "topic/" + i, queue.peek().topic );
+                queue.remove( record );
+            }
+            assertTrue( queue.isEmpty() );
+            assertNull( queue.peek() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testFullSegmentRollsOver() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            // about 16 records of 4 KB fill a 64 KB segment
+            for ( int i = 0; i < 20; i++ )
+                assertTrue( queue.append( 0, "t", payload( i, 4000 ) ) );
+            assertEquals( 2, queue.getSegmentCount() );
+            assertEquals( 2, segmentFiles().length );
+
+            // reading across the segment boundary keeps the order and deletes the empty segment
+            for ( int i = 0; i < 20; i++ )
+            {
+                AwsIoTHubSpillQueue.Record record = queue.peek();
+                assertEquals( sequenceOf( record ), i );
+                queue.remove( record );
+            }
+            assertNull( queue.peek() );
+            assertEquals( 1, queue.getSegmentCount() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testRecordLargerThanSegmentIsDropped() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertFalse( queue.append( 0, "t", new byte[64 * 1024] ) );
+            assertTrue( queue.isEmpty() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testOldestSegmentIsDroppedWhenFull() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            int appended = 0;
+            while ( queue.getSegmentCount() < 4 || queue.getPending() == appended )
+                assertTrue( queue.append( 0, "t", payload( appended++, 4000 ) ) );
+
+            // the budget holds four segments; the fifth took the place of the first
+            assertEquals( 4, queue.getSegmentCount() );
+            assertEquals( 4, segmentFiles().length );
+            long dropped = appended - queue.getPending();
+            assertTrue( dropped > 0 );
+
+            // what is left is the newest records, still in order
+            AwsIoTHubSpillQueue.Record first = queue.peek();
+            assertEquals( dropped, sequenceOf( first ) );
+            long expected = dropped;
+            AwsIoTHubSpillQueue.Record record;
+            while ( ( record = queue.peek() ) != null )
+            {
+                assertEquals( expected++, sequenceOf( record ) );
+                queue.remove( record );
+            }
+            assertEquals( appended, expected );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testRemovingDroppedRecordIsIgnored() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertTrue( queue.append( 0, "t", payload( 0, 4000 ) ) );
+            AwsIoTHubSpillQueue.Record stale = queue.peek();
+            int appended = 1;
+            while ( queue.getPending() == appended )
+                assertTrue( queue.append( 0, "t", payload( appended++, 4000 ) ) );
+
+            long pending = queue.getPending();
+            queue.remove( stale );
+            assertEquals( pending, queue.getPending() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testRecoversRecordsNotReplayed() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        for ( int i = 0; i < 20; i++ )
+            assertTrue( queue.append( i % 2, "topic/" + i, payload( i, 4000 ) ) );
+        for ( int i = 0; i < 3; i++ )
+            queue.remove( queue.peek() );
+        queue.stop();
+
+        AwsIoTHubSpillQueue recovered = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertEquals( 17, recovered.getPending() );
+            for ( int i = 3; i < 20; i++ )
+            {
+                AwsIoTHubSpillQueue.Record record = recovered.peek();
+                assertEquals( i % 2, record.connection );
+                assertEquals( "topic/" + i, record.topic );
+                assertEquals( i, sequenceOf( record ) );
+                recovered.remove( record );
+            }
+            // appending after recovery goes on after the recovered records
+            assertTrue( recovered.append( 0, "t", payload( 20, 10 ) ) );
+            assertEquals( 20, sequenceOf( recovered.peek() ) );
+        }
+        finally
+        {
+            recovered.stop();
+        }
+    }
+
+    public void testRecoveryStopsAtRecordCutShort() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        for ( int i = 0; i < 5; i++ )
+            assertTrue( queue.append( 0, "t", payload( i, 100 ) ) );
+        queue.stop();
+
+        // a crash in the middle of an append leaves the body of a record without its length
+        File segment = segmentFiles()[0];
+        int end = 8 + 5 * ( 8 + 1 + 100 );
+        try ( RandomAccessFile file = new RandomAccessFile( segment, "rw" ) )
+        {
+            file.seek( end + 4 );
+            file.write( "garbage that was never committed".getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        AwsIoTHubSpillQueue recovered = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertEquals( 5, recovered.getPending() );
+            assertTrue( recovered.append( 0, "t", payload( 5, 100 ) ) );
+            for ( int i = 0; i < 6; i++ )
+            {
+                AwsIoTHubSpillQueue.Record record = recovered.peek();
+                assertEquals( i, sequenceOf( record ) );
+                recovered.remove( record );
+            }
+            assertNull( recovered.peek() );
+        }
+        finally
+        {
+            recovered.stop();
+        }
+    }
+
+    public void testUnreadableSegmentsAreSkipped() throws IOException
+    {
+        try ( RandomAccessFile file = new RandomAccessFile( new File( directory, "0000000000000000000.spill" ), "rw" ) )
+        {
+            // right size, but no magic
+            file.setLength( 64 * 1024 );
+        }
+        try ( RandomAccessFile file = new RandomAccessFile( new File( directory, "0000000000000000001.spill" ), "rw" ) )
+        {
+            file.setLength( 1024 );
+        }
+
+        try ( RandomAccessFile file = new RandomAccessFile( new File( directory, "0000000000000000002.spill" ), "rw" ) )
+        {
+            // right size and magic, but a read position past the end
+            file.setLength( 64 * 1024 );
+            file.writeInt( 64 * 1024 + 1 );
+            file.writeInt( 0x53504c31 );
+        }
+
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            assertTrue( queue.isEmpty() );
+            // unreadable segments are deleted rather than left outside the disk budget
+            assertEquals( 0, segmentFiles().length );
+            assertTrue( queue.append( 0, "t", payload( 0, 10 ) ) );
+            // the new segment is numbered after the deleted ones, so it is not mixed up with them
+            assertEquals( 1, segmentFiles().length );
+            assertTrue( new File( directory, "0000000000000000003.spill" ).isFile() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testDirectoryIsLockedWhileOpen() throws IOException
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        try
+        {
+            new AwsIoTHubSpillQueue( directory, BUDGET ).stop();
+            fail( "a second queue opened a locked directory" );
+        }
+        catch ( IOException e )
+        {
+            // expected
+        }
+        finally
+        {
+            queue.stop();
+        }
+        new AwsIoTHubSpillQueue( directory, BUDGET ).stop();
+    }
+
+    public void testReplayKeepsOrderAndRetries() throws Exception
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        for ( int i = 0; i < 40; i++ )
+            assertTrue( queue.append( 0, "t", payload( i, 4000 ) ) );
+
+        final List<Long> replayed = new ArrayList<Long>();
+        final int[] attempts = { 0 };
+        try
+        {
+            queue.start( "test", record -> {
+                synchronized ( replayed )
+                {
+                    // every third hand-off fails and has to be offered again
+                    if ( ++attempts[0] % 3 == 0 )
+                        return false;
+                    replayed.add( sequenceOf( record ) );
+                    return true;
+                }
+            }, () -> true, 100000 );
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !queue.isEmpty() && System.currentTimeMillis() < deadline )
+                Thread.sleep( 10 );
+        }
+        finally
+        {
+            queue.stop();
+        }
+
+        synchronized ( replayed )
+        {
+            assertEquals( 40, replayed.size() );
+            for ( int i = 0; i < 40; i++ )
+                assertEquals( Long.valueOf( i ), replayed.get( i ) );
+        }
+    }
+
+    public void testReplayWaitsUntilReady() throws Exception
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        assertTrue( queue.append( 0, "t", payload( 0, 10 ) ) );
+        final AtomicBoolean ready = new AtomicBoolean();
+        try
+        {
+            queue.start( "test", record -> true, ready::get, 100000 );
+            Thread.sleep( 200 );
+            assertEquals( 1, queue.getPending() );
+
+            ready.set( true );
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !queue.isEmpty() && System.currentTimeMillis() < deadline )
+                Thread.sleep( 10 );
+            assertTrue( queue.isEmpty() );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    public void testFullWindowDoesNotPaceReplay() throws Exception
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        // a window of one slot, acknowledged shortly after each publish
+        final AwsIoTHubPublishWindow window = new AwsIoTHubPublishWindow( 1, AwsIoTHubPublishWindow.OverflowPolicy.BLOCK, 1000, 0 );
+        final ScheduledExecutorService broker = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger replayed = new AtomicInteger();
+        try
+        {
+            // the window is full while the records are spilled, but the client is connected
+            assertTrue( window.awaitSlot() );
+            queue.start( "test", record -> {
+                if ( !window.awaitSlot() )
+                    return false;
+                replayed.incrementAndGet();
+                broker.schedule( window::succeeded, 1, TimeUnit.MILLISECONDS );
+                return true;
+            }, () -> true, 10 );
+            for ( int i = 0; i < 100; i++ )
+                assertTrue( queue.append( 0, "t", payload( i, 100 ) ) );
+            window.succeeded();
+
+            // at the replay rate of 10 records/s this would take ten seconds
+            long deadline = System.currentTimeMillis() + 3000;
+            while ( !queue.isEmpty() && System.currentTimeMillis() < deadline )
+                Thread.sleep( 10 );
+            assertEquals( 100, replayed.get() );
+        }
+        finally
+        {
+            queue.stop();
+            broker.shutdownNow();
+        }
+    }
+
+    public void testOutageBacklogIsPaced() throws Exception
+    {
+        AwsIoTHubSpillQueue queue = new AwsIoTHubSpillQueue( directory, BUDGET );
+        final AtomicBoolean connected = new AtomicBoolean();
+        try
+        {
+            queue.start( "test", record -> true, connected::get, 20 );
+            for ( int i = 0; i < 20; i++ )
+                assertTrue( queue.append( 0, "t", payload( i, 100 ) ) );
+
+            long start = System.nanoTime();
+            connected.set( true );
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( !queue.isEmpty() && System.currentTimeMillis() < deadline )
+                Thread.sleep( 10 );
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+            assertTrue( queue.isEmpty() );
+            // 20 records at 20 records/s
+            assertTrue( "replayed in " + elapsedMillis + " ms", elapsedMillis >= 800 );
+        }
+        finally
+        {
+            queue.stop();
+        }
+    }
+
+    private File[] segmentFiles()
+    {
+        return directory.listFiles( ( dir, name ) -> name.endsWith( ".spill" ) );
+    }
+
+    /**
+     * @return a payload of <code>length</code> bytes starting with its sequence number
+     */
+    private static byte[] payload( int sequence, int length )
+    {
+        byte[] payload = new byte[length];
+        byte[] digits = ( sequence + ":" ).getBytes( StandardCharsets.UTF_8 );
+        for ( int i = 0; i < length; i++ )
+            payload[i] = ( i < digits.length ) ? digits[i] : (byte) 'x';
+        return payload;
+    }
+
+    private static long sequenceOf( AwsIoTHubSpillQueue.Record record )
+    {
+        String text = new String( record.payload, StandardCharsets.UTF_8 );
+        return Long.parseLong( text.substring( 0, text.indexOf( ':' ) ) );
+    }
+}